@@ -14,6 +14,7 @@ import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 
 import com.survivorserver.GlobalMarket.HistoryHandler.MarketAction;
+import com.survivorserver.GlobalMarket.Listing;
 import com.survivorserver.GlobalMarket.LocaleHandler;
 import com.survivorserver.GlobalMarket.Market;
 import com.survivorserver.GlobalMarket.MarketStorage;
@@ -131,6 +132,10 @@ public class CreateCommand extends SubCommand {
 					return true;
 				}
 			}
+			if (!storage.canCreate()) {
+				sender.sendMessage(ChatColor.RED + locale.get("market_unavailable"));
+				return true;
+			}
 			ItemStack toList = player.getItemInHand().clone();
 			if (fee > 0) {
 				if (econ.has(sender.getName(), fee)) {
@@ -160,15 +165,17 @@ public class CreateCommand extends SubCommand {
 			}
 			String world = player.getWorld().getName();
 			int tradeTime = market.getTradeTime(player);
+			Listing listing;
 			if (tradeTime > 0) {
-				storage.queueListing(infinite ? market.getInfiniteSeller() : player.getName(), toList, price, world);
+				listing = storage.queueListing(infinite ? market.getInfiniteSeller() : player.getName(), toList, price, world);
 				sender.sendMessage(ChatColor.GREEN + locale.get("item_queued", tradeTime));
 			} else {
-				storage.createListing(infinite ? market.getInfiniteSeller() : player.getName(), toList, price, world);
+				listing = storage.createListing(infinite ? market.getInfiniteSeller() : player.getName(), toList, price, world);
 				sender.sendMessage(ChatColor.GREEN + locale.get("item_listed"));
 			}
 			if (market.enableHistory()) {
-				market.getHistory().storeHistory(player.getName(), "", MarketAction.LISTING_CREATED, toList, price);
+				// The listing's item is already stored, no need for another ID
+				market.getHistory().storeHistory(player.getName(), "", MarketAction.LISTING_CREATED, listing.getItemId(), toList.getAmount(), price);
 			}
 		} else {
 			sender.sendMessage(prefix + locale.get("hold_an_item") + " " + locale.get("cmd.create_syntax"));
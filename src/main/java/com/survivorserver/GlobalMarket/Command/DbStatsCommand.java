@@ -0,0 +1,82 @@
+package com.survivorserver.GlobalMarket.Command;
+
+import org.bukkit.command.CommandSender;
+
+import com.survivorserver.GlobalMarket.ItemCache;
+import com.survivorserver.GlobalMarket.LocaleHandler;
+import com.survivorserver.GlobalMarket.Market;
+import com.survivorserver.GlobalMarket.SQL.AsyncDatabase;
+import com.survivorserver.GlobalMarket.SQL.Database;
+import com.survivorserver.GlobalMarket.SQL.QueueMetrics;
+import com.survivorserver.GlobalMarket.SQL.ReadPool;
+
+public class DbStatsCommand extends SubCommand {
+	
+	public DbStatsCommand(Market market, LocaleHandler locale) {
+		super(market, locale);
+	}
+	
+	@Override
+	public String getCommand() {
+		return "dbstats";
+	}
+	
+	@Override
+	public String[] getAliases() {
+		return null;
+	}
+	
+	@Override
+	public String getPermissionNode() {
+		return "globalmarket.admin";
+	}
+	
+	@Override
+	public String getHelp() {
+		return locale.get("cmd.prefix") + locale.get("cmd.dbstats_syntax") + " " + locale.get("cmd.dbstats_descr");
+	}
+	
+	@Override
+	public boolean allowConsoleSender() {
+		return true;
+	}
+	
+	@Override
+	public boolean onCommand(CommandSender sender, String[] args) {
+		String prefix = locale.get("cmd.prefix");
+		AsyncDatabase asyncDb = market.getStorage().getAsyncDb();
+		QueueMetrics metrics = asyncDb.getMetrics();
+		sender.sendMessage(prefix + locale.get("dbstats.queue", asyncDb.getQueueSize(), asyncDb.getDeferredSize(), asyncDb.getOldestPendingAge()));
+		sender.sendMessage(prefix + locale.get("dbstats.writes", metrics.getWritten(), format(metrics.getWriteRate()),
+				metrics.getCoalesced(), metrics.getDropped(), metrics.getConnectionFailures()));
+		sender.sendMessage(prefix + locale.get("dbstats.flushes", metrics.getFlushes(), format(metrics.getAverageFlush()), format(metrics.getMaxFlush())));
+		long[] histogram = metrics.getFlushHistogram();
+		StringBuilder buckets = new StringBuilder();
+		for (int i = 0; i < histogram.length; i++) {
+			if (i > 0) {
+				buckets.append(", ");
+			}
+			buckets.append(i < QueueMetrics.FLUSH_BUCKETS.length ? "<" + QueueMetrics.FLUSH_BUCKETS[i] : ">=" + QueueMetrics.FLUSH_BUCKETS[i - 1]);
+			buckets.append("ms: ").append(histogram[i]);
+		}
+		sender.sendMessage(prefix + locale.get("dbstats.histogram", buckets.toString()));
+		Database db = asyncDb.getDb();
+		if (db != null) {
+			sender.sendMessage(prefix + locale.get("dbstats.statements", format(db.getStatementCacheHitRate() * 100),
+					db.getStatementCacheHits(), db.getStatementCacheMisses()));
+		}
+		ReadPool pool = market.getReadPool();
+		if (pool != null) {
+			sender.sendMessage(prefix + locale.get("dbstats.read_pool", pool.getIdle(), pool.getSize(), pool.getBorrows(),
+					format(pool.getAverageWait()), pool.getTimeouts()));
+		}
+		ItemCache cache = market.getStorage().getItemCache();
+		long lookups = cache.getHits() + cache.getMisses();
+		sender.sendMessage(prefix + locale.get("dbstats.item_cache", cache.size(), format(lookups == 0 ? 0 : cache.getHits() * 100D / lookups)));
+		return true;
+	}
+	
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+}
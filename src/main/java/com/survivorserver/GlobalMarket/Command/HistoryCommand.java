@@ -1,5 +1,7 @@
 package com.survivorserver.GlobalMarket.Command;
 
+import java.sql.SQLException;
+
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
@@ -8,6 +10,7 @@ import org.bukkit.scheduler.BukkitRunnable;
 import com.survivorserver.GlobalMarket.LocaleHandler;
 import com.survivorserver.GlobalMarket.Market;
 import com.survivorserver.GlobalMarket.SQL.Database;
+import com.survivorserver.GlobalMarket.SQL.ReadPool;
 
 public class HistoryCommand extends SubCommand {
 
@@ -49,9 +52,16 @@ public class HistoryCommand extends SubCommand {
 		final Player player = (Player) sender;
 		new BukkitRunnable() {
 			public void run() {
-				Database db = market.getStorage().getAsyncDb().getDb();
-				synchronized(db) {
+				ReadPool pool = market.getReadPool();
+				Database db = null;
+				try {
+					db = pool.borrow();
 					player.sendMessage(market.getHistory().buildHistory(player.getName(), 15, db));
+				} catch(SQLException e) {
+					market.log.severe("Couldn't get a connection to build history:");
+					e.printStackTrace();
+				} finally {
+					pool.release(db);
 				}
 			}
 		}.runTaskAsynchronously(market);
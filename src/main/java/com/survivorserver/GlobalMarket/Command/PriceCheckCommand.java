@@ -1,5 +1,7 @@
 package com.survivorserver.GlobalMarket.Command;
 
+import java.sql.SQLException;
+
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
 import org.bukkit.command.CommandSender;
@@ -10,6 +12,7 @@ import org.bukkit.scheduler.BukkitRunnable;
 import com.survivorserver.GlobalMarket.LocaleHandler;
 import com.survivorserver.GlobalMarket.Market;
 import com.survivorserver.GlobalMarket.SQL.Database;
+import com.survivorserver.GlobalMarket.SQL.ReadPool;
 
 public class PriceCheckCommand extends SubCommand {
 
@@ -53,9 +56,16 @@ public class PriceCheckCommand extends SubCommand {
 			final ItemStack item = player.getItemInHand();
 			new BukkitRunnable() {
 				public void run() {
-					Database db = market.getStorage().getAsyncDb().getDb();
-					synchronized(db) {
+					ReadPool pool = market.getReadPool();
+					Database db = null;
+					try {
+						db = pool.borrow();
 						player.sendMessage(market.getHistory().getPricesInformation(item, db));
+					} catch(SQLException e) {
+						market.log.severe("Couldn't get a connection to check prices:");
+						e.printStackTrace();
+					} finally {
+						pool.release(db);
 					}
 				}
 			}.runTaskAsynchronously(market);
@@ -2,7 +2,6 @@ package com.survivorserver.GlobalMarket.Command;
 
 import java.util.Collection;
 
-import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.FileConfiguration;
 
@@ -13,6 +12,7 @@ import com.survivorserver.GlobalMarket.LocaleHandler;
 import com.survivorserver.GlobalMarket.Market;
 import com.survivorserver.GlobalMarket.SQL.AsyncDatabase;
 import com.survivorserver.GlobalMarket.SQL.QueuedStatement;
+import com.survivorserver.GlobalMarket.SQL.QueuedStatement.Change;
 
 public class ReloadCommand extends SubCommand {
 	
@@ -64,14 +64,7 @@ public class ReloadCommand extends SubCommand {
 				|| !addr.equals(conf.getString("storage.mysql_address"))
 				|| port != conf.getInt("storage.mysql_port")) {
 			AsyncDatabase asyncDb = market.getStorage().getAsyncDb();
-			if (asyncDb.isProcessing()) {
-				sender.sendMessage(ChatColor.YELLOW + "DB queue is currently running, haulting...");
-				while(asyncDb.isProcessing()) { 
-					market.setSyncHault(true);
-				}
-				market.setSyncHault(false);
-			}
-			asyncDb.processQueue(true);
+			// Waits for the queue to be written, up to storage.shutdown_timeout_ms
 			asyncDb.close();
 			market.initializeStorage();
 		}
@@ -88,7 +81,8 @@ public class ReloadCommand extends SubCommand {
 				listing.seller = seller;
 				market.getStorage().getAsyncDb().addStatement(new QueuedStatement("UPDATE listings SET seller=? WHERE id=?")
 				.setValue(seller)
-				.setValue(listing.getId()));
+				.setValue(listing.getId())
+				.setEntity("listings:" + listing.getId(), Change.UPDATE));
 			}
 			market.getInterfaceHandler().updateAllViewers();
 		}
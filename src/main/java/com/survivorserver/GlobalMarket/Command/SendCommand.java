@@ -95,6 +95,10 @@ public class SendCommand extends SubCommand {
 				return true;
 			}
 			args[1] = off.getName();
+			if (!market.getStorage().canCreate()) {
+				sender.sendMessage(ChatColor.RED + locale.get("market_unavailable"));
+				return true;
+			}
 			int mailTime = market.getMailTime(player);
 			if (args.length == 3) {
 				int amount = 0;
@@ -10,9 +10,11 @@ import org.bukkit.inventory.ItemStack;
 
 import com.survivorserver.GlobalMarket.SQL.Database;
 import com.survivorserver.GlobalMarket.SQL.AsyncDatabase;
+import com.survivorserver.GlobalMarket.SQL.ItemCodec;
 import com.survivorserver.GlobalMarket.SQL.MarketResult;
 import com.survivorserver.GlobalMarket.SQL.QueuedStatement;
 import com.survivorserver.GlobalMarket.SQL.StorageMethod;
+import com.survivorserver.GlobalMarket.SQL.UserStatsStatement;
 
 public class HistoryHandler {
 
@@ -59,7 +61,8 @@ public class HistoryHandler {
 		.setValue(itemId)
 		.setValue(item.getAmount())
 		.setValue(price)
-		.setValue(System.currentTimeMillis()));
+		.setValue(System.currentTimeMillis())
+		.setDeferrable(true));
 	}
 	
 	public void storeHistory(String player, String who, MarketAction action, int itemId, int amount, double price) {
@@ -70,39 +73,16 @@ public class HistoryHandler {
 		.setValue(itemId)
 		.setValue(amount)
 		.setValue(price)
-		.setValue(System.currentTimeMillis()));
+		.setValue(System.currentTimeMillis())
+		.setDeferrable(true));
 	}
 	
 	public void incrementSpent(String player, double amount) {
-		if (config.getStorageMethod() == StorageMethod.SQLITE) {
-			asyncDb.addStatement(new QueuedStatement("INSERT OR REPLACE INTO users (name, earned, spent) VALUES (?, COALESCE((SELECT earned FROM users WHERE name=?), 0) + ?, COALESCE((SELECT spent FROM users WHERE name=?), 0))")
-			.setValue(player)
-			.setValue(player)
-			.setValue(amount)
-			.setValue(player));
-		} else {
-			asyncDb.addStatement(new QueuedStatement("INSERT INTO users (name,earned,spent) VALUES (?,?,?) ON DUPLICATE KEY UPDATE earned=earned+?")
-			.setValue(player)
-			.setValue(0)
-			.setValue(amount)
-			.setValue(amount));
-		}
+		asyncDb.addStatement(new UserStatsStatement(config.getStorageMethod() == StorageMethod.SQLITE, player, 0, amount));
 	}
 	
 	public void incrementEarned(String player, double amount) {
-		if (config.getStorageMethod() == StorageMethod.SQLITE) {
-			asyncDb.addStatement(new QueuedStatement("INSERT OR REPLACE INTO users (name, earned, spent) VALUES (?, COALESCE((SELECT earned FROM users WHERE name=?), 0) + ?, COALESCE((SELECT spent FROM users WHERE name=?), 0))")
-			.setValue(player)
-			.setValue(player)
-			.setValue(amount)
-			.setValue(player));
-		} else {
-			asyncDb.addStatement(new QueuedStatement("INSERT INTO users (name,earned,spent) VALUES (?,?,?) ON DUPLICATE KEY UPDATE earned=earned+?")
-			.setValue(player)
-			.setValue(amount)
-			.setValue(0)
-			.setValue(amount));
-		}
+		asyncDb.addStatement(new UserStatsStatement(config.getStorageMethod() == StorageMethod.SQLITE, player, amount, 0));
 	}
 	
 	public double[] getMonetaryUsage(String player, Database db) throws SQLException {
@@ -125,7 +105,7 @@ public class HistoryHandler {
 			history.add(ChatColor.GRAY + "| " + ChatColor.GREEN + locale.get("history.total_earned", market.getEcon().format(eS[0])));
 			history.add(ChatColor.GRAY + "| " + ChatColor.GREEN + locale.get("history.total_spent", market.getEcon().format(eS[1])));
 			history.add(ChatColor.GRAY + "| " + ChatColor.GREEN + locale.get("history.actual_amount_made", market.getEcon().format(eS[2])));	
-			MarketResult result = db.createStatement("SELECT history.player, history.action, history.who, history.amount, history.price, history.time, items.item FROM history, items WHERE history.player = ? AND history.item = items.id")
+			MarketResult result = db.createStatement("SELECT history.player, history.action, history.who, history.amount, history.price, history.time, items.format, items.item, items.data FROM history, items WHERE history.player = ? AND history.item = items.id")
 					.setString(player)
 					.query();
 			while(result.next()) {
@@ -133,7 +113,7 @@ public class HistoryHandler {
 				String date = new Date(result.getLong("time")).toString();
 				MarketAction action = MarketAction.valueOf(result.getString("action").toUpperCase());
 				String who = result.getString("who");
-				ItemStack item = result.getItemStack("item");
+				ItemStack item = result.getItemStack();
 				double price = result.getDouble("price");
 				String itemName = market.getItemName(item);
 				String prefix = locale.get("history.prefix", result.getRow(), date);
@@ -178,7 +158,8 @@ public class HistoryHandler {
 		String itemName = market.getItemName(item);
 		int itemId = 0;
 		try {
-			MarketResult result = db.createStatement("SELECT id FROM items WHERE item=?")
+			MarketResult result = db.createStatement("SELECT id FROM items WHERE data=? OR item=?")
+					.setBytes(ItemCodec.encode(item))
 					.setString(MarketStorage.itemStackToString(item))
 					.query();
 			if (result.next()) {
@@ -84,6 +84,20 @@ public abstract class MarketInterface {
 		}
 	}
 	
+	/**
+	 * Shown in place of an item that's still being read from the database
+	 */
+	public ItemStack buildPlaceholder(Market market) {
+		ItemStack placeholder = new ItemStack(Material.THIN_GLASS);
+		ItemMeta meta = placeholder.getItemMeta();
+		if (meta == null) {
+			meta = market.getServer().getItemFactory().getItemMeta(placeholder.getType());
+		}
+		meta.setDisplayName(ChatColor.GRAY + market.getLocale().get("interface.loading"));
+		placeholder.setItemMeta(meta);
+		return placeholder;
+	}
+	
 	public void buildFunctionBar(Market market, InterfaceHandler handler, InterfaceViewer viewer, ItemStack[] contents, boolean pPage, boolean nPage) {
 		if (pPage) {
 			// Prev page
@@ -136,6 +136,16 @@ public class InterfaceHandler {
 				}
 			}
 		}
+		if (storage.getCachedItem(item.getItemId(), 1) == null) {
+			// Evicted since the page was drawn
+			inv.setItem(slot, mInterface.buildPlaceholder(market));
+			viewer.getBoundSlots().remove(slot);
+			viewer.setLoading(true);
+			List<MarketItem> missing = new ArrayList<MarketItem>(1);
+			missing.add(item);
+			prefetch(missing);
+			return;
+		}
 		inv.setItem(slot, mInterface.prepareItem(item, viewer, viewer.getPage(), slot, left, shift));
 	}
 	
@@ -150,6 +160,8 @@ public class InterfaceHandler {
 		if (search != null) {
 			contents = mInterface.doSearch(viewer, viewer.getSearch());
 		}
+		prefetch(contents);
+		boolean loading = false;
 		int slot = 0;
 		int p = 0;
 		int n = viewer.getPage() * (invContents.length - 9);
@@ -181,9 +193,15 @@ public class InterfaceHandler {
 						}
 					}
 				}
-				ItemStack item = mInterface.prepareItem(marketItem, viewer, p, slot, left, shift);
-				boundSlots.put(slot, marketItem.getId());
-				invContents[slot] = item;
+				if (storage.getCachedItem(marketItem.getItemId(), 1) == null) {
+					// Not clickable until the real item is drawn
+					invContents[slot] = mInterface.buildPlaceholder(market);
+					loading = true;
+				} else {
+					ItemStack item = mInterface.prepareItem(marketItem, viewer, p, slot, left, shift);
+					boundSlots.put(slot, marketItem.getId());
+					invContents[slot] = item;
+				}
 			}
 			slot++;
 		}
@@ -199,11 +217,35 @@ public class InterfaceHandler {
 		mInterface.buildFunctionBar(market, this, viewer, invContents, prevPage, nextPage);
 		inv.setContents(invContents);
 		viewer.setBoundSlots(boundSlots);
+		viewer.setLoading(loading);
 		if (!clicked) {
 			viewer.resetActions();
 		}
 	}
 	
+	/*
+	 * Items are read off the main thread, whoever is still looking at a placeholder is redrawn once they're in
+	 */
+	private void prefetch(List<MarketItem> contents) {
+		List<Integer> itemIds = new ArrayList<Integer>(contents.size());
+		for (MarketItem item : contents) {
+			itemIds.add(item.getItemId());
+		}
+		storage.prefetchItems(itemIds, new Runnable() {
+			public void run() {
+				refreshLoading();
+			}
+		});
+	}
+	
+	private void refreshLoading() {
+		for (InterfaceViewer viewer : new ArrayList<InterfaceViewer>(viewers)) {
+			if (viewer.isLoading()) {
+				refreshViewer(viewer, viewer.getInterface().getName());
+			}
+		}
+	}
+	
 	public void refreshViewer(InterfaceViewer viewer, String view) {
 		if (viewer.getInterface().getName().equalsIgnoreCase(view)) {
 			refreshInterface(viewer);
@@ -24,6 +24,7 @@ public class InterfaceViewer {
 	MarketInterface mInterface;
 	int searchSize = 0;
 	SortMethod sort;
+	boolean loading;
 	
 	public InterfaceViewer(String name, String player, Inventory gui, MarketInterface mInterface, String world) {
 		this.name = name;
@@ -136,4 +137,15 @@ public class InterfaceViewer {
 	public void setSort(SortMethod sort) {
 		this.sort = sort;
 	}
+	
+	/**
+	 * @return True if the page has placeholders for items that are still being read
+	 */
+	public boolean isLoading() {
+		return loading;
+	}
+	
+	public void setLoading(boolean loading) {
+		this.loading = loading;
+	}
 }
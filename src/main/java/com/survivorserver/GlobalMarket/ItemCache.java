@@ -0,0 +1,580 @@
+package com.survivorserver.GlobalMarket;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.survivorserver.GlobalMarket.SQL.AsyncDatabase;
+import com.survivorserver.GlobalMarket.SQL.Database;
+import com.survivorserver.GlobalMarket.SQL.ItemCodec;
+import com.survivorserver.GlobalMarket.SQL.MarketResult;
+import com.survivorserver.GlobalMarket.SQL.QueuedStatement;
+import com.survivorserver.GlobalMarket.SQL.ReadPool;
+
+/**
+ * Read-through cache of decoded items, bounded by the encoded size of the
+ * items it holds. Least recently used items are evicted first. Items that
+ * were stored but haven't been written to the database yet are pinned and
+ * never evicted. The fingerprint of every item seen since the last clear is
+ * kept after eviction, so equal items can still be found without reading them.
+ */
+public class ItemCache {
+	
+	private static final int LOAD_CHUNK_SIZE = 500;
+	// Fewer rows than this are decoded on the calling thread
+	private static final int PARALLEL_THRESHOLD = 256;
+	
+	private Market market;
+	private AsyncDatabase asyncDb;
+	private LinkedHashMap<Integer, CachedItem> resident;
+	private Map<Integer, CachedItem> pinned;
+	private Map<Long, Integer> fingerprints;
+	// Items being read by a prefetch
+	private Set<Integer> loading;
+	private long maxWeight;
+	private long weight;
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+	
+	public ItemCache(Market market, AsyncDatabase asyncDb) {
+		this.market = market;
+		this.asyncDb = asyncDb;
+		resident = new LinkedHashMap<Integer, CachedItem>(16, 0.75f, true);
+		pinned = new HashMap<Integer, CachedItem>();
+		fingerprints = new HashMap<Long, Integer>();
+		loading = new HashSet<Integer>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+	
+	/**
+	 * @param kilobytes Maximum encoded size of the unpinned items kept in memory
+	 */
+	public synchronized void setMaxSize(long kilobytes) {
+		maxWeight = kilobytes * 1024;
+		evict();
+	}
+	
+	/**
+	 * Gets an item, reading it from the database if it isn't in memory. A miss waits on the
+	 * database, so anything drawn on the main thread should use getIfPresent() and prefetch()
+	 * @param id Item ID
+	 * @return ItemStack with an amount of 1, or null if the item doesn't exist
+	 */
+	public ItemStack get(int id) {
+		ItemStack item = getIfPresent(id);
+		if (item != null) {
+			hits.incrementAndGet();
+			return item;
+		}
+		misses.incrementAndGet();
+		List<Integer> ids = new ArrayList<Integer>(1);
+		ids.add(id);
+		loadFromDatabase(ids);
+		return getIfPresent(id);
+	}
+	
+	public synchronized ItemStack getIfPresent(int id) {
+		CachedItem cached = pinned.get(id);
+		if (cached == null) {
+			cached = resident.get(id);
+		}
+		return cached == null ? null : cached.item;
+	}
+	
+	/**
+	 * Makes sure the given items are in memory, reading any missing ones on the calling thread
+	 * with as few queries as possible
+	 * @param ids Item IDs
+	 */
+	public void getAll(Collection<Integer> ids) {
+		Set<Integer> missing = getMissing(ids);
+		hits.addAndGet(ids.size() - missing.size());
+		if (missing.isEmpty()) {
+			return;
+		}
+		misses.addAndGet(missing.size());
+		try {
+			loadFromDatabase(missing);
+		} finally {
+			synchronized (this) {
+				loading.removeAll(missing);
+			}
+		}
+	}
+	
+	/**
+	 * Reads missing items on an async task so they are in memory when they are needed. Items
+	 * another prefetch is already reading are left to it
+	 * @param ids Item IDs
+	 * @param loaded Run on the main thread once the items this call read are in memory, or null
+	 */
+	public void prefetch(Collection<Integer> ids, final Runnable loaded) {
+		final Set<Integer> missing = getMissing(ids);
+		hits.addAndGet(ids.size() - missing.size());
+		if (missing.isEmpty()) {
+			return;
+		}
+		misses.addAndGet(missing.size());
+		new BukkitRunnable() {
+			public void run() {
+				try {
+					loadFromDatabase(missing);
+				} finally {
+					synchronized (ItemCache.this) {
+						loading.removeAll(missing);
+					}
+				}
+				if (loaded != null) {
+					new BukkitRunnable() {
+						public void run() {
+							loaded.run();
+						}
+					}.runTask(market);
+				}
+			}
+		}.runTaskAsynchronously(market);
+	}
+	
+	/*
+	 * Items that aren't in memory or being read yet, marked as being read
+	 */
+	private synchronized Set<Integer> getMissing(Collection<Integer> ids) {
+		Set<Integer> missing = new LinkedHashSet<Integer>();
+		for (Integer id : ids) {
+			if (!pinned.containsKey(id) && !resident.containsKey(id) && !loading.contains(id)) {
+				missing.add(id);
+			}
+		}
+		loading.addAll(missing);
+		return missing;
+	}
+	
+	/**
+	 * Finds the ID of a stored item with the given fingerprint, whether it's still in memory or not
+	 * @param fingerprint ItemCodec.fingerprint() of the item's encoding
+	 * @return Item ID, or -1 if no item with that fingerprint has been seen
+	 */
+	public synchronized int find(long fingerprint) {
+		Integer id = fingerprints.get(fingerprint);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * Adds an item that's waiting to be written to the database. It stays in memory until unpin() is called
+	 */
+	public synchronized void pin(int id, ItemStack item, int size, Long fingerprint) {
+		pinned.put(id, new CachedItem(item, size));
+		if (fingerprint != null) {
+			addFingerprint(id, fingerprint);
+		}
+	}
+	
+	public synchronized void unpin(int id) {
+		CachedItem cached = pinned.remove(id);
+		if (cached != null) {
+			resident.put(id, cached);
+			weight += cached.size;
+			evict();
+		}
+	}
+	
+	private synchronized void put(int id, ItemStack item, int size, Long fingerprint) {
+		if (fingerprint != null) {
+			addFingerprint(id, fingerprint);
+		}
+		if (pinned.containsKey(id)) {
+			return;
+		}
+		CachedItem old = resident.put(id, new CachedItem(item, size));
+		if (old != null) {
+			weight -= old.size;
+		}
+		weight += size;
+		evict();
+	}
+	
+	/**
+	 * @return Copy of every item currently in memory
+	 */
+	public synchronized Map<Integer, ItemStack> getItems() {
+		Map<Integer, ItemStack> items = new LinkedHashMap<Integer, ItemStack>();
+		for (Entry<Integer, CachedItem> entry : resident.entrySet()) {
+			items.put(entry.getKey(), entry.getValue().item);
+		}
+		for (Entry<Integer, CachedItem> entry : pinned.entrySet()) {
+			items.put(entry.getKey(), entry.getValue().item);
+		}
+		return items;
+	}
+	
+	/**
+	 * @return Copy of every fingerprint seen since the last clear, to be restored with addFingerprints()
+	 */
+	public synchronized Map<Long, Integer> getFingerprints() {
+		return new HashMap<Long, Integer>(fingerprints);
+	}
+	
+	public synchronized void addFingerprints(Map<Long, Integer> saved) {
+		for (Entry<Long, Integer> entry : saved.entrySet()) {
+			addFingerprint(entry.getValue(), entry.getKey());
+		}
+	}
+	
+	public synchronized void clear() {
+		resident.clear();
+		pinned.clear();
+		fingerprints.clear();
+		weight = 0;
+	}
+	
+	public synchronized int size() {
+		return resident.size() + pinned.size();
+	}
+	
+	public synchronized long getWeight() {
+		return weight;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/*
+	 * The most recently used item is always kept, so a single item larger than the budget can still be read
+	 */
+	private void evict() {
+		Iterator<Entry<Integer, CachedItem>> it = resident.entrySet().iterator();
+		while (weight > maxWeight && resident.size() > 1) {
+			Entry<Integer, CachedItem> eldest = it.next();
+			it.remove();
+			weight -= eldest.getValue().size;
+			evictions.incrementAndGet();
+		}
+	}
+	
+	/*
+	 * The first ID seen for an item is kept, duplicates stored before deduplication keep working
+	 */
+	private void addFingerprint(int id, long fingerprint) {
+		if (!fingerprints.containsKey(fingerprint)) {
+			fingerprints.put(fingerprint, id);
+		}
+	}
+	
+	/*
+	 * Reads items on a read connection so misses don't contend with the DB queue
+	 */
+	private void loadFromDatabase(Collection<Integer> ids) {
+		ReadPool pool = market.getReadPool();
+		Database db = null;
+		try {
+			db = pool.borrow();
+			load(db, ids, false);
+		} catch(SQLException e) {
+			market.log.severe("Couldn't get a connection to read items:");
+			e.printStackTrace();
+		} finally {
+			pool.release(db);
+		}
+	}
+	
+	/**
+	 * Reads items from the database into the cache
+	 * @param db Connection to read from
+	 * @param ids Item IDs
+	 * @param untilFull Stop once the cache is full
+	 * @return Number of items read
+	 */
+	public int load(Database db, Collection<Integer> ids, boolean untilFull) {
+		List<RawItem> rows = new ArrayList<RawItem>();
+		try {
+			// Fetch the raw rows first so the connection isn't held while decoding
+			long pending = 0;
+			long budget = maxWeight - getWeight();
+			Iterator<Integer> it = ids.iterator();
+			while (it.hasNext() && !(untilFull && pending >= budget)) {
+				MarketResult res = queryChunk(db, it);
+				while(res.next() && !(untilFull && pending >= budget)) {
+					RawItem row = readRow(res);
+					pending += row.getSize();
+					rows.add(row);
+				}
+				res.close();
+			}
+		} catch(Exception e) {
+			market.log.severe("Error while reading items:");
+			e.printStackTrace();
+		}
+		return put(rows);
+	}
+	
+	public interface ItemVisitor {
+		
+		/**
+		 * @param item ItemStack with an amount of 1, only valid for the duration of the call
+		 */
+		void visit(int id, ItemStack item);
+	}
+	
+	/**
+	 * Hands every item to a visitor without caching the ones that aren't in memory. They're read
+	 * and decoded a chunk at a time and dropped once visited, so memory doesn't grow with the number
+	 * of items. Their fingerprints are still kept so find() sees them
+	 * @param db Connection to read from
+	 * @param ids Item IDs
+	 * @param visitor Called once for each item that could be read
+	 */
+	public void scan(Database db, Collection<Integer> ids, ItemVisitor visitor) {
+		List<Integer> missing = new ArrayList<Integer>();
+		for (Integer id : new LinkedHashSet<Integer>(ids)) {
+			ItemStack item = getIfPresent(id);
+			if (item != null) {
+				visitor.visit(id, item);
+			} else {
+				missing.add(id);
+			}
+		}
+		try {
+			Iterator<Integer> it = missing.iterator();
+			while (it.hasNext()) {
+				List<RawItem> rows = new ArrayList<RawItem>();
+				MarketResult res = queryChunk(db, it);
+				while (res.next()) {
+					rows.add(readRow(res));
+				}
+				res.close();
+				decodeAll(rows);
+				for (RawItem row : rows) {
+					if (row.item != null) {
+						if (row.fingerprint != null) {
+							synchronized (this) {
+								addFingerprint(row.id, row.fingerprint);
+							}
+						}
+						visitor.visit(row.id, row.item);
+					}
+					saveSanitized(row);
+				}
+			}
+		} catch(Exception e) {
+			market.log.severe("Error while reading items:");
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Every chunk is a different query, caching them would only evict statements that get reused
+	 */
+	private MarketResult queryChunk(Database db, Iterator<Integer> ids) throws SQLException {
+		StringBuilder query = new StringBuilder();
+		query.append("SELECT * FROM items WHERE id IN (");
+		for (int i = 0; i < LOAD_CHUNK_SIZE && ids.hasNext(); i++) {
+			if (i > 0) {
+				query.append(", ");
+			}
+			query.append(ids.next());
+		}
+		query.append(")");
+		MarketResult res = db.createUncachedStatement(query.toString()).query();
+		if (res == null) {
+			throw new SQLException("Couldn't read items");
+		}
+		return res;
+	}
+	
+	private static RawItem readRow(MarketResult res) {
+		RawItem row = new RawItem(res.getInt("id"), res.getInt("format"));
+		if (row.format == ItemCodec.FORMAT_BINARY) {
+			row.data = res.getBytes("data");
+		} else {
+			row.yaml = res.getString("item");
+		}
+		return row;
+	}
+	
+	private int put(List<RawItem> rows) {
+		decodeAll(rows);
+		int loaded = 0;
+		for (RawItem row : rows) {
+			if (row.item != null) {
+				put(row.id, row.item, row.getSize(), row.fingerprint);
+				loaded++;
+			}
+			saveSanitized(row);
+		}
+		return loaded;
+	}
+	
+	private void decodeAll(List<RawItem> rows) {
+		if (rows.size() < PARALLEL_THRESHOLD) {
+			decode(rows);
+		} else {
+			decodeParallel(rows);
+		}
+	}
+	
+	private void saveSanitized(RawItem row) {
+		if (row.sanitized) {
+			asyncDb.addStatement(new QueuedStatement("UPDATE items SET item=? WHERE id=?")
+			.setValue(row.yaml)
+			.setValue(row.id));
+		}
+	}
+	
+	/**
+	 * Decodes items that were already read in the binary format
+	 * @param items Encoded items by ID
+	 * @return Number of items decoded
+	 */
+	public int loadEncoded(Map<Integer, byte[]> items) {
+		List<RawItem> rows = new ArrayList<RawItem>(items.size());
+		for (Entry<Integer, byte[]> entry : items.entrySet()) {
+			RawItem row = new RawItem(entry.getKey(), ItemCodec.FORMAT_BINARY);
+			row.data = entry.getValue();
+			rows.add(row);
+		}
+		return put(rows);
+	}
+	
+	/*
+	 * Splits the rows into a slice per core. Each row is only touched by the thread decoding its slice
+	 */
+	private void decodeParallel(List<RawItem> rows) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> slices = new ArrayList<Callable<Void>>();
+			int sliceSize = (rows.size() + threads - 1) / threads;
+			for (int i = 0; i < rows.size(); i += sliceSize) {
+				final List<RawItem> slice = rows.subList(i, Math.min(i + sliceSize, rows.size()));
+				slices.add(new Callable<Void>() {
+					public Void call() {
+						decode(slice);
+						return null;
+					}
+				});
+			}
+			for (Future<Void> future : pool.invokeAll(slices)) {
+				future.get();
+			}
+		} catch(Exception e) {
+			market.log.severe("Error while decoding items:");
+			e.printStackTrace();
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private void decode(List<RawItem> rows) {
+		for (RawItem row : rows) {
+			try {
+				decode(row);
+			} catch(RuntimeException e) {
+				// Bukkit can throw anything while deserializing an item, don't lose the rest of the rows to it
+				row.item = null;
+				market.log.severe("Item ID " + row.id + " could not be decoded:");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void decode(RawItem row) {
+		if (row.data == null && row.yaml == null) {
+			market.log.severe("Item ID " + row.id + " is empty");
+			return;
+		}
+		if (row.format == ItemCodec.FORMAT_BINARY) {
+			try {
+				row.item = ItemCodec.decode(row.data);
+				row.fingerprint = ItemCodec.fingerprint(row.data);
+			} catch(IOException e) {
+				market.log.severe("Item ID " + row.id + " could not be decoded:");
+				e.printStackTrace();
+			}
+			return;
+		}
+		try {
+			row.item = MarketStorage.itemStackFromString(row.yaml);
+		} catch(InvalidConfigurationException e) {
+			market.log.info("Item ID " + row.id + " has invalid characters");
+			row.yaml = MarketStorage.sanitizeItemString(row.yaml);
+			row.sanitized = true;
+			try {
+				row.item = MarketStorage.itemStackFromString(row.yaml);
+			} catch(InvalidConfigurationException e1) {
+				market.log.severe("Item ID " + row.id + " could not be read:");
+				e1.printStackTrace();
+			}
+		}
+		if (row.item != null) {
+			try {
+				// Equal items stored in the binary format have the same encoding
+				row.fingerprint = ItemCodec.fingerprint(ItemCodec.encode(row.item));
+			} catch(IOException ignored) { }
+		}
+	}
+	
+	private static class RawItem {
+		
+		int id;
+		int format;
+		byte[] data;
+		String yaml;
+		boolean sanitized;
+		ItemStack item;
+		Long fingerprint;
+		
+		RawItem(int id, int format) {
+			this.id = id;
+			this.format = format;
+		}
+		
+		int getSize() {
+			if (data != null) {
+				return data.length;
+			}
+			return yaml != null ? yaml.length() : 0;
+		}
+	}
+	
+	private static class CachedItem {
+		
+		ItemStack item;
+		int size;
+		
+		CachedItem(ItemStack item, int size) {
+			this.item = item;
+			this.size = size;
+		}
+	}
+}
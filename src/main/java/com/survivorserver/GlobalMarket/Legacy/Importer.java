@@ -34,6 +34,9 @@ public class Importer {
 			List<Listing> listings = storage.getAllListings();
 			for (int i = 0; i < listings.size(); i++) {
 				Listing listing = listings.get(i);
+				if (!reserveIds(sql, market)) {
+					return;
+				}
 				sql.createListing(listing.getSeller(), listing.getItem(), listing.getPrice(), world);
 			}
 			/*
@@ -43,6 +46,9 @@ public class Importer {
 			Set<String> players = storage.getAllMailUsers();
 			for (String player : players) {
 				for (Mail mail : storage.getAllMailFor(player)) {
+					if (!reserveIds(sql, market)) {
+						return;
+					}
 					sql.createMail(mail.getOwner(), mail.getSender(), mail.getItem(), mail.getPickup(), world);
 				}
 			}
@@ -53,12 +59,18 @@ public class Importer {
 					List<Object> item = set.getValue();
 					String type = (String) item.get(0);
 					if (type.equalsIgnoreCase("listing_create")) {
+						if (!reserveIds(sql, market)) {
+							return;
+						}
 						sql.createListing((String) item.get(2), (ItemStack) item.get(1), (Double) item.get(3), world);
 					} else if (type.equalsIgnoreCase("mail_to")) {
 						String from = null;
 						if (item.size() == 5) {
 							from = (String) item.get(3);
 						}
+						if (!reserveIds(sql, market)) {
+							return;
+						}
 						sql.createMail((String) item.get(2), from, (ItemStack) item.get(1), 0, world);
 					}
 				}
@@ -84,4 +96,15 @@ public class Importer {
 			e.printStackTrace();
 		}
 	}
+	
+	/*
+	 * Importing is allowed to block, but it takes IDs much faster than they're reserved in the background
+	 */
+	private static boolean reserveIds(MarketStorage sql, Market market) {
+		if (!sql.awaitCreate()) {
+			market.log.severe("Couldn't reserve IDs for the imported data, the import stopped partway. The old files were left in place");
+			return false;
+		}
+		return true;
+	}
 }
@@ -121,17 +121,28 @@ public class Listing implements MarketItem, Comparable<Listing> {
 	
 	public static class Comparators {
 		
+		public static Comparator<Listing> NEWEST = new Comparator<Listing>() {
+			@Override
+			public int compare(Listing o1, Listing o2) {
+				int c = o2.time.compareTo(o1.time);
+				if (c != 0) {
+					return c;
+				}
+				return o2.id < o1.id ? -1 : (o2.id == o1.id ? 0 : 1);
+			}
+		};
+		
 		public static Comparator<Listing> PRICE_LOWEST = new Comparator<Listing>() {
 			@Override
 			public int compare(Listing o1, Listing o2) {
-				return (int) (o1.price - o2.price);
+				return Double.compare(o1.price, o2.price);
 			}
 		};
 		
 		public static Comparator<Listing> PRICE_HIGHEST = new Comparator<Listing>() {
 			@Override
 			public int compare(Listing o1, Listing o2) {
-				return (int) (o2.price - o1.price);
+				return Double.compare(o2.price, o1.price);
 			}
 		};
 		
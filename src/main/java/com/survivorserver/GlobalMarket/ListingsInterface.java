@@ -165,6 +165,9 @@ public class ListingsInterface extends MarketInterface {
 			if (name.contains(market.getLocale().get("interface.cancel_search"))) {
 				return true;
 			}
+			if (name.contains(market.getLocale().get("interface.loading"))) {
+				return true;
+			}
 		}
 		if (meta.hasLore()) {
 			for (String lore : meta.getLore()) {
@@ -142,6 +142,9 @@ public class MailInterface extends MarketInterface {
 
 	@Override
 	public boolean identifyItem(ItemMeta meta) {
+		if (meta.hasDisplayName() && meta.getDisplayName().contains(market.getLocale().get("interface.loading"))) {
+			return true;
+		}
 		if (meta.hasLore()) {
 			for (String lore : meta.getLore()) {
 				if (lore.contains(market.getLocale().get("price")) || lore.contains(market.getLocale().get("click_to_retrieve"))) {
@@ -1,5 +1,6 @@
 package com.survivorserver.GlobalMarket;
 
+import java.io.File;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
@@ -9,6 +10,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
 import java.util.logging.Logger;
 
 import net.milkbowl.vault.economy.Economy;
@@ -43,10 +45,13 @@ import com.survivorserver.GlobalMarket.Command.MarketCommand;
 import com.survivorserver.GlobalMarket.Interface.Handler;
 import com.survivorserver.GlobalMarket.Legacy.Importer;
 import com.survivorserver.GlobalMarket.SQL.AsyncDatabase;
+import com.survivorserver.GlobalMarket.SQL.ReadPool;
 import com.survivorserver.GlobalMarket.SQL.Database;
 import com.survivorserver.GlobalMarket.SQL.StorageMethod;
 import com.survivorserver.GlobalMarket.Tasks.CleanTask;
 import com.survivorserver.GlobalMarket.Tasks.ExpireTask;
+import com.survivorserver.GlobalMarket.Tasks.ItemMigrationTask;
+import com.survivorserver.GlobalMarket.Tasks.SyncTask;
 import com.survivorserver.GlobalMarket.Tasks.Queue;
 
 public class Market extends JavaPlugin implements Listener {
@@ -65,9 +70,11 @@ public class Market extends JavaPlugin implements Listener {
 	private MarketCommand cmd;
 	private HistoryHandler history;
 	private AsyncDatabase asyncDb;
+	private ReadPool readPool;
+	private SyncTask syncTask;
+	private ItemMigrationTask itemMigrationTask;
 	public String infiniteSeller;
 	private MarketStorage storage;
-	private boolean haultSync = false;
 	private Map<String, String[]> worldLinks;
 	String prefix;
 
@@ -82,6 +89,21 @@ public class Market extends JavaPlugin implements Listener {
 		getConfig().addDefault("storage.mysql_database", "market");
 		getConfig().addDefault("storage.mysql_address", "localhost");
 		getConfig().addDefault("storage.mysql_port", 3306);
+		getConfig().addDefault("storage.item_cache_kb", 16384);
+		getConfig().addDefault("storage.snapshot", true);
+		getConfig().addDefault("storage.flush_interval_ms", 250);
+		getConfig().addDefault("storage.flush_size", 500);
+		getConfig().addDefault("storage.max_batch_size", 1000);
+		getConfig().addDefault("storage.read_connections", 3);
+		getConfig().addDefault("storage.journal", true);
+		getConfig().addDefault("storage.backlog_warn", 5000);
+		getConfig().addDefault("storage.backlog_defer", 20000);
+		getConfig().addDefault("storage.id_block_size", 100);
+		getConfig().addDefault("storage.shutdown_timeout_ms", 30000);
+		getConfig().addDefault("sync.enable", false);
+		getConfig().addDefault("sync.server_id", "");
+		getConfig().addDefault("sync.poll_interval_ticks", 20);
+		getConfig().addDefault("sync.retention_hours", 24);
 		getConfig().addDefault("multiworld.enable", false);
 		getConfig().addDefault("multiworld.links.world", Arrays.asList(new String[]{"world_nether", "world_the_end"}));
 		getConfig().addDefault("limits.default.cut", 0.0);
@@ -113,6 +135,9 @@ public class Market extends JavaPlugin implements Listener {
 		getConfig().addDefault("notify_on_update", true);
 		
 		getConfig().options().copyDefaults(true);
+		if (getConfig().getString("sync.server_id").isEmpty()) {
+			getConfig().set("sync.server_id", UUID.randomUUID().toString());
+		}
 		saveConfig();
 		
 		RegisteredServiceProvider<Economy> economyProvider = getServer().getServicesManager().getRegistration(net.milkbowl.vault.economy.Economy.class);
@@ -152,10 +177,35 @@ public class Market extends JavaPlugin implements Listener {
 			log.severe("Couldn't connect to the configured database! GlobalMarket can't continue without a connection, please check your config and do /market reload or restart your server");
 			return;
 		}
+		if (config.getStorageMethod() == StorageMethod.SQLITE) {
+			db.enableWal();
+		}
+		if (readPool != null) {
+			readPool.close();
+		}
+		readPool = new ReadPool(this, getConfig().getInt("storage.read_connections"));
 		storage.loadSchema(db);
+		if (getConfig().getBoolean("storage.journal")) {
+			asyncDb.openJournal(new File(getDataFolder(), "queue.journal"), db);
+		}
 		storage.load(db);
 		db.close();
 		asyncDb.startTask();
+		if (itemMigrationTask != null) {
+			// The reload may have switched databases, the new one gets a fresh pass
+			itemMigrationTask.cancel();
+		}
+		itemMigrationTask = new ItemMigrationTask(this, asyncDb);
+		itemMigrationTask.runTaskTimerAsynchronously(this, 200, 40);
+		if (syncTask != null) {
+			syncTask.cancel();
+			syncTask = null;
+		}
+		if (storage.getChangeLog() != null) {
+			int interval = Math.max(1, getConfig().getInt("sync.poll_interval_ticks"));
+			syncTask = new SyncTask(this, storage, storage.getChangeLog());
+			tasks.add(syncTask.runTaskTimerAsynchronously(this, interval, interval).getTaskId());
+		}
 		if (interfaceHandler == null) {
 			intialize();
 		}
@@ -225,6 +275,46 @@ public class Market extends JavaPlugin implements Listener {
 		return interfaceHandler;
 	}
 	
+	public ReadPool getReadPool() {
+		return readPool;
+	}
+	
+	public int getItemCacheSize() {
+		return getConfig().getInt("storage.item_cache_kb");
+	}
+	
+	public long getFlushInterval() {
+		return getConfig().getLong("storage.flush_interval_ms");
+	}
+	
+	public int getFlushSize() {
+		return getConfig().getInt("storage.flush_size");
+	}
+	
+	public int getMaxBatchSize() {
+		return getConfig().getInt("storage.max_batch_size");
+	}
+	
+	public int getBacklogWarn() {
+		return getConfig().getInt("storage.backlog_warn");
+	}
+	
+	public int getBacklogDefer() {
+		return getConfig().getInt("storage.backlog_defer");
+	}
+	
+	public int getIdBlockSize() {
+		return getConfig().getInt("storage.id_block_size");
+	}
+	
+	public long getShutdownTimeout() {
+		return getConfig().getLong("storage.shutdown_timeout_ms");
+	}
+	
+	public boolean useSnapshot() {
+		return getConfig().getBoolean("storage.snapshot");
+	}
+	
 	public int getStallRadius() {
 		return getConfig().getInt("stall_radius");
 	}
@@ -410,14 +500,6 @@ public class Market extends JavaPlugin implements Listener {
 		return getConfig().getInt("limits.default.expire_time");
 	}
 	
-	public synchronized boolean haultSync() {
-		return haultSync;
-	}
-	
-	public void setSyncHault(boolean b) {
-		haultSync = b;
-	}
-	
 	@SuppressWarnings("deprecation")
 	public boolean itemBlacklisted(ItemStack item) {
 		if (getConfig().isSet("blacklist.item_id." + item.getTypeId())) {
@@ -513,6 +595,21 @@ public class Market extends JavaPlugin implements Listener {
 		return history;
 	}
 	
+	public boolean enableSync() {
+		return getConfig().getBoolean("sync.enable");
+	}
+	
+	public String getServerId() {
+		return getConfig().getString("sync.server_id");
+	}
+	
+	/**
+	 * @return How long entries in the change log are kept in ms
+	 */
+	public long getSyncRetention() {
+		return getConfig().getLong("sync.retention_hours") * 3600000;
+	}
+	
 	public boolean enableMultiworld() {
 		return getConfig().getBoolean("multiworld.enable");
 	}
@@ -728,14 +825,15 @@ public class Market extends JavaPlugin implements Listener {
 		for(int i = 0; i < tasks.size(); i++) {
 			getServer().getScheduler().cancelTask(tasks.get(i));
 		}
-		if (asyncDb.isProcessing()) {
-			market.log.info("DB queue is currently running, haulting...");
-			while(asyncDb.isProcessing()) { 
-				haultSync = true;
-			}
-			haultSync = false;
+		if (itemMigrationTask != null) {
+			itemMigrationTask.cancel();
+		}
+		asyncDb.shutdown(getShutdownTimeout());
+		if (useSnapshot() && asyncDb.getQueueSize() == 0) {
+			storage.saveSnapshot(asyncDb.getDb());
 		}
-		asyncDb.processQueue(true);
 		asyncDb.close();
+		readPool.close();
+		storage.getIdAllocator().close();
 	}
 }
\ No newline at end of file
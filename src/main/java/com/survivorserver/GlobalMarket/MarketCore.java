@@ -23,7 +23,44 @@ public class MarketCore {
 		this.storage = storage;
 	}
 	
-	public boolean buyListing(Listing listing, Player player, InterfaceViewer viewer, boolean removeListing, boolean mailItem, boolean refreshInterface) {
+	/**
+	 * Buys a listing for a player. Unless it's infinite the listing is claimed first, so the sale
+	 * itself happens a moment later once the claim succeeds
+	 * @return True if the purchase went ahead or is waiting on the claim
+	 */
+	public boolean buyListing(final Listing listing, final Player player, final InterfaceViewer viewer, final boolean removeListing, final boolean mailItem, final boolean refreshInterface) {
+		boolean isInfinite = listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller());
+		if (!storage.canCreate()) {
+			player.sendMessage(ChatColor.RED + market.getLocale().get("market_unavailable"));
+			return false;
+		}
+		if (isInfinite || !removeListing) {
+			return buyListing(listing, player, viewer, removeListing, mailItem, refreshInterface, false);
+		}
+		if (!market.getEcon().has(player.getName(), listing.getPrice())) {
+			return false;
+		}
+		storage.claimListing(listing, new MarketStorage.ClaimCallback() {
+			public void claimed(boolean claimed) {
+				if (!claimed) {
+					player.sendMessage(ChatColor.RED + market.getLocale().get("listing_unavailable"));
+					return;
+				}
+				// IDs may have been used up while the claim was running
+				if (!storage.canCreate()) {
+					player.sendMessage(ChatColor.RED + market.getLocale().get("market_unavailable"));
+					storage.cancelClaim(listing);
+					return;
+				}
+				if (!buyListing(listing, player, viewer, removeListing, mailItem, refreshInterface, true)) {
+					storage.cancelClaim(listing);
+				}
+			}
+		});
+		return true;
+	}
+	
+	private boolean buyListing(Listing listing, Player player, InterfaceViewer viewer, boolean removeListing, boolean mailItem, boolean refreshInterface, boolean claimed) {
 		double originalPrice = listing.getPrice();
 		double cutPrice = originalPrice;
 		Economy econ = market.getEcon();
@@ -86,7 +123,11 @@ public class MarketCore {
 			}
 		}
 		if (!isInfinite && removeListing) {
-			storage.removeListing(listing.getId());
+			if (claimed) {
+				storage.completeClaim(listing);
+			} else {
+				storage.removeListing(listing.getId());
+			}
 		}
 		String itemName = market.getItemName(item);
 		market.notifyPlayer(seller, market.autoPayment() ? market.getLocale().get("you_sold_your_listing_of", itemName) :
@@ -99,7 +140,31 @@ public class MarketCore {
 		return true;
 	}
 	
+	/**
+	 * Buys a listing, waiting for the claim on the calling thread
+	 */
 	public synchronized boolean buyListing(Listing listing, String buyer, boolean removeListing, boolean refreshInterface) {
+		boolean isInfinite = listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller());
+		boolean claimed = false;
+		if (!storage.canCreate()) {
+			return false;
+		}
+		if (!isInfinite && removeListing) {
+			if (!market.getEcon().has(buyer, listing.getPrice()) || !storage.claimListingNow(listing)) {
+				return false;
+			}
+			claimed = true;
+		}
+		if (!buyListing(listing, buyer, removeListing, refreshInterface, claimed)) {
+			if (claimed) {
+				storage.cancelClaim(listing);
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	private boolean buyListing(Listing listing, String buyer, boolean removeListing, boolean refreshInterface, boolean claimed) {
 		double originalPrice = listing.getPrice();
 		double cutPrice = originalPrice;
 		Economy econ = market.getEcon();
@@ -156,7 +221,11 @@ public class MarketCore {
 		// Transfer the item to where it belongs
 		storage.createMail(buyer, null, listing.getItemId(), listing.getAmount(), listing.getWorld());
 		if (!isInfinite && removeListing) {
-			storage.removeListing(listing.getId());
+			if (claimed) {
+				storage.completeClaim(listing);
+			} else {
+				storage.removeListing(listing.getId());
+			}
 		}
 		String itemName = market.getItemName(item);
 		market.notifyPlayer(seller, market.autoPayment() ? market.getLocale().get("you_sold_your_listing_of", itemName) :
@@ -169,7 +238,26 @@ public class MarketCore {
 		return true;
 	}
 	
-	public void removeListing(Listing listing, Player player) {
+	/**
+	 * Takes a listing down once it's been claimed, mailing the item back to its seller
+	 */
+	public void removeListing(final Listing listing, final Player player) {
+		if (!storage.canCreate()) {
+			player.sendMessage(ChatColor.RED + market.getLocale().get("market_unavailable"));
+			return;
+		}
+		storage.claimListing(listing, new MarketStorage.ClaimCallback() {
+			public void claimed(boolean claimed) {
+				if (claimed) {
+					removeClaimedListing(listing, player);
+				} else {
+					player.sendMessage(ChatColor.RED + market.getLocale().get("listing_unavailable"));
+				}
+			}
+		});
+	}
+	
+	private void removeClaimedListing(Listing listing, Player player) {
 		if (!listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller())) {
 			int mailTime = market.getMailTime(player);
 			if (mailTime > 0 && market.queueOnBuy() && !player.hasPermission("globalmarket.noqueue")) {
@@ -179,7 +267,7 @@ public class MarketCore {
 				storage.createMail(listing.getSeller(), null, listing.getItemId(), listing.getAmount(), listing.getWorld());
 			}
 		}
-		storage.removeListing(listing.getId());
+		storage.completeClaim(listing);
 		handler.updateAllViewers();
 		if (market.enableHistory()) {
 			if (!listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller())) {
@@ -194,10 +282,13 @@ public class MarketCore {
 	}
 	
 	public synchronized void removeListing(Listing listing, String player) {
+		if (!storage.canCreate() || !storage.claimListingNow(listing)) {
+			return;
+		}
 		if (!listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller())) {
 			storage.createMail(listing.getSeller(), null, listing.getItemId(), listing.getAmount(), listing.getWorld());
 		}
-		storage.removeListing(listing.getId());
+		storage.completeClaim(listing);
 		handler.updateAllViewers();
 		if (market.enableHistory()) {
 			if (!listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller())) {
@@ -212,10 +303,14 @@ public class MarketCore {
 	}
 	
 	public synchronized void expireListing(Listing listing) {
+		// Left for the next pass if the seller's mail couldn't be created
+		if (!storage.canCreate() || !storage.claimListingNow(listing)) {
+			return;
+		}
 		if (!listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller())) {
 			storage.createMail(listing.getSeller(), "Expired", listing.getItemId(), listing.getAmount(), listing.getWorld());
 		}
-		storage.removeListing(listing.getId());
+		storage.completeClaim(listing);
 		handler.updateAllViewers();
 		if (!listing.getSeller().equalsIgnoreCase(market.getInfiniteSeller())) {
 			if (market.enableHistory()) {
@@ -1,14 +1,23 @@
 package com.survivorserver.GlobalMarket;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.Material;
 import org.bukkit.configuration.InvalidConfigurationException;
@@ -19,9 +28,6 @@ import org.bukkit.inventory.meta.BookMeta;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.CustomClassLoaderConstructor;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 import com.survivorserver.GlobalMarket.Chat.TellRawClickEvent;
 import com.survivorserver.GlobalMarket.Chat.TellRawHoverEvent;
 import com.survivorserver.GlobalMarket.Chat.TellRawMessage;
@@ -30,45 +36,69 @@ import com.survivorserver.GlobalMarket.Lib.SearchResult;
 import com.survivorserver.GlobalMarket.Lib.SortMethod;
 import com.survivorserver.GlobalMarket.SQL.Database;
 import com.survivorserver.GlobalMarket.SQL.AsyncDatabase;
+import com.survivorserver.GlobalMarket.SQL.ChangeLog;
+import com.survivorserver.GlobalMarket.SQL.IdAllocator;
+import com.survivorserver.GlobalMarket.SQL.ItemCodec;
 import com.survivorserver.GlobalMarket.SQL.MarketResult;
 import com.survivorserver.GlobalMarket.SQL.QueuedStatement;
+import com.survivorserver.GlobalMarket.SQL.QueuedStatement.Change;
+import com.survivorserver.GlobalMarket.SQL.SchemaManager;
 import com.survivorserver.GlobalMarket.SQL.StorageMethod;
 
 public class MarketStorage {
 
+	// Most IDs one action takes from a sequence, a sale can mail both a payment and the item
+	private static final int IDS_PER_ACTION = 2;
+	private static final long ID_WAIT_TIMEOUT = 30000;
+	
 	private Market market;
 	private AsyncDatabase asyncDb;
-	private Map<Integer, ItemStack> items;
+	private ItemCache itemCache;
 	private Map<Integer, Listing> listings;
 	private Map<String, List<Listing>> worldListings;
 	private Map<Integer, Mail> mail;
 	private Map<String, List<Mail>> worldMail;
 	private Map<Integer, QueueItem> queue;
 	private List<Listing> condensedListings;
-	private int itemIndex;
-	private int listingIndex;
-	private int mailIndex;
-	private int queueIndex;
+	private PriceIndex priceIndex;
+	private SearchIndex searchIndex;
+	// Sellers are lowercase, they're matched ignoring case
+	private OwnerIndex<Listing> sellerIndex;
+	private OwnerIndex<Mail> mailIndex;
+	private IdAllocator ids;
+	// Null unless cross-server sync is enabled
+	private ChangeLog changeLog;
+	// Listings being claimed or sold right now
+	private Set<Integer> claims;
 	
 	public MarketStorage(Market market, AsyncDatabase asyncDb) {
 		this.market = market;
 		this.asyncDb = asyncDb;
-		items = Collections.synchronizedMap(new HashMap<Integer, ItemStack>());
+		itemCache = new ItemCache(market, asyncDb);
+		itemCache.setMaxSize(market.getItemCacheSize());
+		ids = new IdAllocator(market, market.getIdBlockSize());
+		claims = Collections.synchronizedSet(new HashSet<Integer>());
 		listings = new LinkedHashMap<Integer, Listing>();
 		worldListings = Collections.synchronizedMap(new HashMap<String, List<Listing>>());
 		mail = Collections.synchronizedMap(new LinkedHashMap<Integer, Mail>());
 		worldMail = Collections.synchronizedMap(new HashMap<String, List<Mail>>());
 		queue = Collections.synchronizedMap(new LinkedHashMap<Integer, QueueItem>());
 		condensedListings = new ArrayList<Listing>();
+		priceIndex = new PriceIndex();
+		searchIndex = new SearchIndex();
+		sellerIndex = new OwnerIndex<Listing>();
+		mailIndex = new OwnerIndex<Mail>();
 	}
 	
-	public void loadSchema(Database db) {
-		boolean sqlite = market.getConfigHandler().getStorageMethod() == StorageMethod.SQLITE;
+	public void loadSchema(final Database db) {
+		final boolean sqlite = market.getConfigHandler().getStorageMethod() == StorageMethod.SQLITE;
 		try {
 			// Create items table
 			db.createStatement("CREATE TABLE IF NOT EXISTS items ("
 					+ (sqlite ? "id INTEGER NOT NULL PRIMARY KEY, " : "id int NOT NULL PRIMARY KEY AUTO_INCREMENT, ")
-					+ (sqlite ? "item MEDIUMTEXT" : "item MEDIUMTEXT CHARACTER SET utf8 COLLATE utf8_general_ci")
+					+ (sqlite ? "item MEDIUMTEXT, " : "item MEDIUMTEXT CHARACTER SET utf8 COLLATE utf8_general_ci, ")
+					+ (sqlite ? "format INTEGER DEFAULT 0, " : "format TINYINT DEFAULT 0, ")
+					+ (sqlite ? "data BLOB" : "data MEDIUMBLOB")
 					+ ")").execute();
 			// Create listings table
 			db.createStatement("CREATE TABLE IF NOT EXISTS listings ("
@@ -88,10 +118,27 @@ public class MarketStorage {
 					+ "sender TINYTEXT, "
 					+ "world TINYTEXT, "
 					+ "pickup DOUBLE)").execute();
-			// Create queue table
-			db.createStatement("CREATE TABLE IF NOT EXISTS queue ("
-					+ (sqlite ? "id INTEGER NOT NULL PRIMARY KEY, " : "id int NOT NULL PRIMARY KEY AUTO_INCREMENT, ")
-					+ "data MEDIUMTEXT)").execute();
+			// Create queue tables, IDs are shared between the two
+			db.createStatement("CREATE TABLE IF NOT EXISTS queue_listings ("
+					+ "id int NOT NULL PRIMARY KEY, "
+					+ "time BIGINT, "
+					+ "listing int, "
+					+ "seller TINYTEXT, "
+					+ "item int, "
+					+ "amount int, "
+					+ "price DOUBLE, "
+					+ "world TINYTEXT, "
+					+ "listed BIGINT)").execute();
+			db.createStatement("CREATE TABLE IF NOT EXISTS queue_mail ("
+					+ "id int NOT NULL PRIMARY KEY, "
+					+ "time BIGINT, "
+					+ "mail int, "
+					+ "owner TINYTEXT, "
+					+ "item int, "
+					+ "amount int, "
+					+ "sender TINYTEXT, "
+					+ "world TINYTEXT, "
+					+ "pickup DOUBLE)").execute();
 			// Create users metadata table
 			db.createStatement("CREATE TABLE IF NOT EXISTS users ("
 					+ "name varchar(16) NOT NULL UNIQUE, "
@@ -111,115 +158,341 @@ public class MarketStorage {
 			market.log.severe("Error while preparing database:");
 			e.printStackTrace();
 		}
+		/*
+		 * Changes to tables that already exist. Append new migrations, never edit released ones
+		 */
+		final SchemaManager schema = new SchemaManager(market, db, sqlite);
+		schema.addMigration(1, "binary item format", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				if (!db.hasColumn("items", "format")) {
+					db.createStatement("ALTER TABLE items ADD COLUMN " + (sqlite ? "format INTEGER DEFAULT 0" : "format TINYINT DEFAULT 0")).executeUpdate();
+				}
+				if (!db.hasColumn("items", "data")) {
+					db.createStatement("ALTER TABLE items ADD COLUMN " + (sqlite ? "data BLOB" : "data MEDIUMBLOB")).executeUpdate();
+				}
+			}
+		});
+		schema.addMigration(2, "typed queue tables", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				if (db.hasTable("queue")) {
+					migrateQueue(db);
+				}
+			}
+		});
+		schema.addMigration(3, "history indexes", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				schema.createIndex("history_player_time", "history", "player, time", "player(32), time");
+				schema.createIndex("history_item_action", "history", "item, action", "item, action(16)");
+			}
+		});
+		schema.addMigration(4, "listing and mail owner indexes", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				schema.createIndex("listings_seller", "listings", "seller", "seller(32)");
+				schema.createIndex("mail_owner", "mail", "owner", "owner(32)");
+			}
+		});
+		schema.addMigration(5, "item content indexes", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				schema.createIndex("items_data", "items", "data", "data(255)");
+				schema.createIndex("items_item", "items", "item", "item(255)");
+			}
+		});
+		schema.addMigration(6, "ID sequences", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				db.createStatement("CREATE TABLE IF NOT EXISTS sequences ("
+						+ "name VARCHAR(32) NOT NULL PRIMARY KEY, "
+						+ "next_value BIGINT NOT NULL)").executeUpdate();
+				seedSequence(db, IdAllocator.LISTINGS, "listings");
+				seedSequence(db, IdAllocator.MAIL, "mail");
+				seedSequence(db, IdAllocator.ITEMS, "items");
+				seedSequence(db, IdAllocator.QUEUE, "queue_listings", "queue_mail");
+			}
+		});
+		schema.addMigration(7, "change log", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				db.createStatement("CREATE TABLE IF NOT EXISTS market_changes ("
+						+ (sqlite ? "id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, " : "id BIGINT NOT NULL PRIMARY KEY AUTO_INCREMENT, ")
+						+ "server VARCHAR(36), "
+						+ "time BIGINT, "
+						+ "type VARCHAR(24), "
+						+ "target int)").executeUpdate();
+				schema.createIndex("market_changes_time", "market_changes", "time", "time");
+			}
+		});
+		schema.addMigration(8, "DB queue commit positions", new SchemaManager.Migration() {
+			public void apply(Database db) throws SQLException {
+				db.createStatement("CREATE TABLE IF NOT EXISTS queue_commits ("
+						+ "server VARCHAR(36) NOT NULL, "
+						+ "seq BIGINT NOT NULL, "
+						+ "PRIMARY KEY (server, seq))").executeUpdate();
+			}
+		});
+		schema.migrate();
+	}
+	
+	/*
+	 * Starts a sequence after the highest ID already used in its tables
+	 */
+	private static void seedSequence(Database db, String sequence, String... tables) throws SQLException {
+		MarketResult res = db.createStatement("SELECT next_value FROM sequences WHERE name=?").setString(sequence).query();
+		boolean exists = res.next();
+		res.close();
+		if (exists) {
+			return;
+		}
+		long max = 0;
+		for (String table : tables) {
+			res = db.createStatement("SELECT MAX(id) FROM " + table).query();
+			if (res.next()) {
+				max = Math.max(max, res.getLong(1));
+			}
+			res.close();
+		}
+		db.createStatement("INSERT INTO sequences (name, next_value) VALUES (?, ?)")
+		.setString(sequence)
+		.setLong(max + 1)
+		.executeUpdate();
+	}
+	
+	/*
+	 * Moves every row of the old YAML queue table into the typed queue tables, then drops it.
+	 * Rows are replaced rather than inserted so an interrupted migration can run again
+	 */
+	private void migrateQueue(Database db) throws SQLException {
+		market.log.info("Migrating queue to the new format...");
+		List<QueueItem> items = new ArrayList<QueueItem>();
+		MarketResult res = db.createStatement("SELECT * FROM queue ORDER BY id ASC").query();
+		Yaml yaml = new Yaml(new CustomClassLoaderConstructor(Market.class.getClassLoader()));
+		while(res.next()) {
+			items.add(yaml.loadAs(res.getString("data"), QueueItem.class));
+		}
+		res.close();
+		for (QueueItem item : items) {
+			buildQueueStatement(item, "REPLACE INTO").buildStatement(db).executeUpdate();
+		}
+		db.createStatement("DROP TABLE queue").executeUpdate();
+		market.log.info("Migrated " + items.size() + " queued items");
+	}
+	
+	private static QueuedStatement buildQueueStatement(QueueItem item, String insert) {
+		if (item.getMail() != null) {
+			Mail m = item.getMail();
+			return new QueuedStatement(insert + " queue_mail (id, time, mail, owner, item, amount, sender, world, pickup) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")
+			.setValue(item.getId())
+			.setValue(item.getTime())
+			.setValue(m.getId())
+			.setValue(m.getOwner())
+			.setValue(m.getItemId())
+			.setValue(m.getAmount())
+			.setValue(m.getSender())
+			.setValue(m.getWorld())
+			.setValue(m.getPickup())
+			.setEntity("queue:" + item.getId(), Change.INSERT);
+		}
+		Listing listing = item.getListing();
+		return new QueuedStatement(insert + " queue_listings (id, time, listing, seller, item, amount, price, world, listed) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")
+		.setValue(item.getId())
+		.setValue(item.getTime())
+		.setValue(listing.getId())
+		.setValue(listing.getSeller())
+		.setValue(listing.getItemId())
+		.setValue(listing.getAmount())
+		.setValue(listing.getPrice())
+		.setValue(listing.getWorld())
+		.setValue(listing.getTime())
+		.setEntity("queue:" + item.getId(), Change.INSERT);
 	}
 	
 	public void load(Database db) {
+		// Blocks reserved before a reload may belong to a different database
+		ids.reset();
+		ids.load(db);
+		changeLog = null;
+		if (market.enableSync()) {
+			try {
+				ChangeLog log = new ChangeLog(market.getServerId());
+				// Start from the newest change before reading anything, so changes made while loading are applied after
+				log.start(db);
+				changeLog = log;
+			} catch(SQLException e) {
+				market.log.severe("Couldn't read the change log, changes from other servers won't be seen until a reload:");
+				e.printStackTrace();
+			}
+		}
+		if (loadSnapshot(db)) {
+			return;
+		}
 		// Items we should cache in memory
-		List<Integer> itemIds = new ArrayList<Integer>();
+		Set<Integer> itemIds = new LinkedHashSet<Integer>();
 		try {
+			long started = System.currentTimeMillis();
+			long phase = started;
 			/*
-			 * Synchronize the listing index with the database
+			 * Listings
 			 */
 			listings.clear();
-			listingIndex = 1;
-			MarketResult res = db.createStatement("SELECT id FROM listings ORDER BY id DESC LIMIT 1").query();
-			if (res.next()) {
-				listingIndex = res.getInt(1) + 1;
-			}
-			res = db.createStatement("SELECT * FROM listings ORDER BY id ASC").query();
+			MarketResult res = db.createStatement("SELECT * FROM listings ORDER BY id ASC").query();
 			while(res.next()) {
 				Listing listing = res.constructListing(this);
-				int id = listing.getItemId();
-				if (!itemIds.contains(id)) {
-					itemIds.add(id);
-				}
+				itemIds.add(listing.getItemId());
 				listings.put(listing.getId(), listing);
-				addWorldItem(listing);
-				buildCondensed();
 			}
+			// Stacks are only built once every listing has been read
+			buildCondensed();
+			market.log.info("Loaded " + listings.size() + " listings (" + condensedListings.size() + " stacks) in " + (System.currentTimeMillis() - phase) + "ms");
+			phase = System.currentTimeMillis();
 			/*
-			 * Synchronize the mail index with the database
+			 * Mail
 			 */
 			mail.clear();
+			worldMail.clear();
+			mailIndex.clear();
 			res = db.createStatement("SELECT * FROM mail ORDER BY id ASC").query();
 			while(res.next()) {
 				Mail m = res.constructMail(this);
-				int id = m.getItemId();
-				if (!itemIds.contains(id)) {
-					itemIds.add(id);
-				}
+				itemIds.add(m.getItemId());
 				mail.put(m.getId(), m);
 				addWorldItem(m);
 			}
-			mailIndex = 1;
-			res = db.createStatement("SELECT id FROM mail ORDER BY id DESC LIMIT 1").query();
-			if (res.next()) {
-				mailIndex = res.getInt(1) + 1;
-			}
+			market.log.info("Loaded " + mail.size() + " mail in " + (System.currentTimeMillis() - phase) + "ms");
+			phase = System.currentTimeMillis();
 			/*
 			 * Queue
 			 */
 			queue.clear();
-			res = db.createStatement("SELECT * FROM queue ORDER BY id ASC").query();
-			Yaml yaml = new Yaml(new CustomClassLoaderConstructor(Market.class.getClassLoader()));
+			// Both tables share IDs, sort them back into the order they were queued in
+			TreeMap<Integer, QueueItem> queued = new TreeMap<Integer, QueueItem>();
+			res = db.createStatement("SELECT * FROM queue_listings").query();
 			while(res.next()) {
-				QueueItem item = yaml.loadAs(res.getString(2), QueueItem.class);
-				queue.put(item.getId(), item);
-				int itemId;
-				if (item.getMail() != null) {
-					itemId = item.getMail().getItemId();
-				} else {
-					itemId = item.getListing().getItemId();
-				}
-				if (!itemIds.contains(itemId)) {
-					itemIds.add(itemId);
-				}
+				Listing listing = new Listing(res.getInt("listing"), res.getString("seller"), res.getInt("item"), res.getInt("amount"), res.getDouble("price"), res.getString("world"), res.getLong("listed"));
+				queued.put(res.getInt("id"), new QueueItem(res.getInt("id"), res.getLong("time"), listing));
+				itemIds.add(listing.getItemId());
 			}
-			queueIndex = 1;
-			res = db.createStatement("SELECT id FROM queue ORDER BY id DESC LIMIT 1").query();
-			if (res.next()) {
-				queueIndex = res.getInt(1) + 1;
+			res = db.createStatement("SELECT * FROM queue_mail").query();
+			while(res.next()) {
+				Mail m = new Mail(res.getString("owner"), res.getInt("mail"), res.getInt("item"), res.getInt("amount"), res.getDouble("pickup"), res.getString("sender"), res.getString("world"));
+				queued.put(res.getInt("id"), new QueueItem(res.getInt("id"), res.getLong("time"), m));
+				itemIds.add(m.getItemId());
 			}
+			queue.putAll(queued);
+			market.log.info("Loaded " + queue.size() + " queued items in " + (System.currentTimeMillis() - phase) + "ms");
+			phase = System.currentTimeMillis();
 			/*
 			 * Synchronize needed items
 			 */
-			items.clear();
-			if (itemIds.size() > 0) {
-				StringBuilder query = new StringBuilder();
-				query.append("SELECT * FROM items WHERE id IN (");
-				for (int i = 0; i < itemIds.size(); i++) {
-					query.append(itemIds.get(i));
-					if (i + 1 == itemIds.size()) {
-						query.append(")");
-					} else {
-						query.append(", ");
-					}
-				}
-				res = db.createStatement(query.toString()).query();
-				Map<Integer, String> sanitizedItems = new HashMap<Integer, String>();
-				while(res.next()) {
-					try {
-						items.put(res.getInt(1), itemStackFromString(res.getString(2)));
-					} catch(InvalidConfigurationException e) {
-						int itemId = res.getInt(1);
-						market.log.info("Item ID " + itemId + " has invalid characters");
-						String san = res.getString(2).replaceAll("[\\p{Cc}&&[^\r\n\t]]", "");
-						sanitizedItems.put(itemId, san);
-						items.put(res.getInt(1), itemStackFromString(san));
-					}
-				}
-				for (Entry<Integer, String> entry : sanitizedItems.entrySet()) {
-					db.createStatement("UPDATE items SET item=? WHERE id=?").setString(entry.getValue()).setInt(entry.getKey()).execute();
+			itemCache.clear();
+			itemCache.setMaxSize(market.getItemCacheSize());
+			// Anything that doesn't fit is read on demand
+			int cached = itemCache.load(db, itemIds, true);
+			market.log.info("Cached " + cached + " of " + itemIds.size() + " items (" + (itemCache.getWeight() / 1024) + "KB) in " + (System.currentTimeMillis() - phase) + "ms");
+			phase = System.currentTimeMillis();
+			searchIndex.clear();
+			buildSearchIndex(db, listings.values());
+			market.log.info("Indexed " + listings.size() + " listings for search in " + (System.currentTimeMillis() - phase) + "ms");
+			market.log.info("Storage loaded in " + (System.currentTimeMillis() - started) + "ms");
+		} catch(Exception e) {
+			market.log.severe("Error while loading:");
+			e.printStackTrace();
+		}
+	}
+	
+	private File getSnapshotFile() {
+		return new File(market.getDataFolder(), "storage.snapshot");
+	}
+	
+	/*
+	 * The snapshot is deleted as soon as it's read, it's only valid for the startup right after the shutdown that wrote it
+	 */
+	private boolean loadSnapshot(Database db) {
+		File file = getSnapshotFile();
+		if (!file.exists()) {
+			return false;
+		}
+		long started = System.currentTimeMillis();
+		try {
+			StorageSnapshot snapshot = StorageSnapshot.read(file);
+			if (snapshot == null) {
+				market.log.info("Storage snapshot is corrupt, loading from the database");
+				return false;
+			}
+			if (!snapshot.matches(StorageSnapshot.getHighWaterMarks(db))) {
+				market.log.info("Database has changed since the last shutdown, loading from the database");
+				return false;
+			}
+			listings.clear();
+			for (Listing listing : snapshot.listings) {
+				listings.put(listing.getId(), listing);
+			}
+			buildCondensed();
+			mail.clear();
+			worldMail.clear();
+			mailIndex.clear();
+			for (Mail m : snapshot.mail) {
+				mail.put(m.getId(), m);
+				addWorldItem(m);
+			}
+			queue.clear();
+			for (QueueItem item : snapshot.queue) {
+				queue.put(item.getId(), item);
+			}
+			itemCache.clear();
+			itemCache.setMaxSize(market.getItemCacheSize());
+			itemCache.loadEncoded(snapshot.items);
+			itemCache.addFingerprints(snapshot.fingerprints);
+			searchIndex.clear();
+			List<Listing> unindexed = new ArrayList<Listing>();
+			for (Listing listing : listings.values()) {
+				String[] texts = snapshot.searchTexts.get(listing.getId());
+				if (texts != null) {
+					searchIndex.restore(listing.getId(), texts, snapshot.searchTypes.get(listing.getId()));
+				} else {
+					unindexed.add(listing);
 				}
 			}
-			itemIndex = 1;
-			res = db.createStatement("SELECT id FROM items ORDER BY id DESC LIMIT 1").query();
-			if (res.next()) {
-				itemIndex = res.getInt(1) + 1;
+			// Only listings the snapshot has no entry for need their items
+			buildSearchIndex(db, unindexed);
+			market.log.info("Storage loaded from snapshot in " + (System.currentTimeMillis() - started) + "ms");
+			return true;
+		} catch(Exception e) {
+			market.log.severe("Error while reading storage snapshot:");
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the in-memory model to disk for the next startup. Should only be called once the DB queue is empty
+	 * @param db Connection to read the high-water marks from
+	 */
+	public void saveSnapshot(Database db) {
+		long started = System.currentTimeMillis();
+		StorageSnapshot snapshot = new StorageSnapshot();
+		try {
+			snapshot.marks = StorageSnapshot.getHighWaterMarks(db);
+			snapshot.listings.addAll(listings.values());
+			snapshot.mail.addAll(mail.values());
+			snapshot.queue.addAll(queue.values());
+			for (Entry<Integer, ItemStack> entry : itemCache.getItems().entrySet()) {
+				snapshot.items.put(entry.getKey(), ItemCodec.encode(entry.getValue()));
 			}
+			for (Listing listing : listings.values()) {
+				String[] texts = searchIndex.getTexts(listing.getId());
+				if (texts != null) {
+					snapshot.searchTexts.put(listing.getId(), texts);
+					snapshot.searchTypes.put(listing.getId(), searchIndex.getType(listing.getId()));
+				}
+			}
+			snapshot.fingerprints.putAll(itemCache.getFingerprints());
+			snapshot.write(getSnapshotFile());
+			market.log.info("Storage snapshot saved in " + (System.currentTimeMillis() - started) + "ms");
 		} catch(Exception e) {
-			market.log.severe("Error while loading:");
+			market.log.severe("Error while saving storage snapshot:");
 			e.printStackTrace();
+			getSnapshotFile().delete();
 		}
 	}
 	
@@ -236,6 +509,7 @@ public class MarketStorage {
 			}
 		}
 		worldListings.get(world).add(0, listing);
+		priceIndex.addToWorld(world, listing);
 	}
 	
 	private void addWorldItem(Mail mailItem) {
@@ -244,6 +518,15 @@ public class MarketStorage {
 			worldMail.put(world, new ArrayList<Mail>());
 		}
 		worldMail.get(world).add(mailItem);
+		mailIndex.add(mailItem.getOwner(), world, mailItem);
+	}
+	
+	private void removeWorldItem(Mail mailItem) {
+		List<Mail> inWorld = worldMail.get(mailItem.getWorld());
+		if (inWorld != null) {
+			inWorld.remove(mailItem);
+		}
+		mailIndex.remove(mailItem.getOwner(), mailItem.getWorld(), mailItem);
 	}
 	
 	private List<Listing> getListingsForWorld(String world) {
@@ -259,19 +542,106 @@ public class MarketStorage {
 		return toReturn;
 	}
 	
-	private List<Mail> getMailForWorld(String world) {
-		List<Mail> toReturn = new ArrayList<Mail>();
-		if (worldMail.containsKey(world)) {
-			toReturn.addAll(worldMail.get(world));
+	/*
+	 * A world and the worlds linked to it
+	 */
+	private Set<String> getWorldSet(String world) {
+		Set<String> worlds = new LinkedHashSet<String>();
+		worlds.add(world);
+		Collections.addAll(worlds, market.getLinkedWorlds(world));
+		return worlds;
+	}
+	
+	public ChangeLog getChangeLog() {
+		return changeLog;
+	}
+	
+	private void recordChange(String type, int id) {
+		if (changeLog != null) {
+			asyncDb.addStatement(changeLog.record(type, id));
 		}
-		for (String w : market.getLinkedWorlds(world)) {
-			if (worldMail.containsKey(w)) {
-				toReturn.addAll(worldMail.get(w));
+	}
+	
+	/**
+	 * Applies changes made by other servers to the in-memory model and refreshes open interfaces.
+	 * Must be called on the main thread
+	 * @param changes Changes in the order they were made
+	 * @param addedListings Rows of the listings that were added, by ID. Missing if they were already removed again
+	 * @param addedMail Rows of the mail that was added, by ID
+	 */
+	public synchronized void applyChanges(List<ChangeLog.Record> changes, Map<Integer, Listing> addedListings, Map<Integer, Mail> addedMail) {
+		boolean listingsChanged = false;
+		Set<String> mailOwners = new LinkedHashSet<String>();
+		for (ChangeLog.Record change : changes) {
+			String type = change.getType();
+			int id = change.getTarget();
+			if (type.equals(ChangeLog.LISTING_ADDED)) {
+				Listing listing = addedListings.get(id);
+				if (listing != null && !listings.containsKey(id)) {
+					listings.put(id, listing);
+					addWorldItem(listing);
+					addToCondensed(listing);
+					listingsChanged = true;
+				}
+			} else if (type.equals(ChangeLog.LISTING_REMOVED)) {
+				Listing listing = listings.get(id);
+				if (listing != null) {
+					removeFromCondensed(listing);
+					listings.remove(id);
+					listingsChanged = true;
+				}
+			} else if (type.equals(ChangeLog.MAIL_ADDED)) {
+				Mail m = addedMail.get(id);
+				if (m != null && !mail.containsKey(id)) {
+					mail.put(id, m);
+					addWorldItem(m);
+					market.notifyPlayer(m.getOwner(), market.getLocale().get("you_have_new_mail"));
+					mailOwners.add(m.getOwner());
+				}
+			} else if (type.equals(ChangeLog.MAIL_REMOVED)) {
+				Mail m = mail.remove(id);
+				if (m != null) {
+					removeWorldItem(m);
+					mailOwners.add(m.getOwner());
+				}
+			} else if (type.equals(ChangeLog.MAIL_PICKUP_CLEARED)) {
+				Mail m = mail.get(id);
+				if (m != null) {
+					m.setPickup(0);
+					mailOwners.add(m.getOwner());
+				}
+			}
+		}
+		if (market.getInterfaceHandler() != null) {
+			if (listingsChanged) {
+				market.getInterfaceHandler().updateAllViewers();
+			}
+			for (String owner : mailOwners) {
+				market.getInterfaceHandler().refreshViewer(owner, "Mail");
 			}
 		}
-		return toReturn;
 	}
-
+	
+	public IdAllocator getIdAllocator() {
+		return ids;
+	}
+	
+	/**
+	 * Whether listings, mail and items can be created right now. Check this before taking
+	 * anything from a player, the IDs they need are reserved in the background
+	 */
+	public boolean canCreate() {
+		return ids.isAvailable(IDS_PER_ACTION, IdAllocator.LISTINGS, IdAllocator.MAIL, IdAllocator.ITEMS, IdAllocator.QUEUE);
+	}
+	
+	/**
+	 * Waits for the IDs canCreate() checks for, for callers that may block such as the importer
+	 * @return False if they couldn't be reserved in time
+	 */
+	public boolean awaitCreate() {
+		return ids.await(IDS_PER_ACTION, ID_WAIT_TIMEOUT, IdAllocator.LISTINGS, IdAllocator.MAIL, IdAllocator.ITEMS, IdAllocator.QUEUE);
+	}
+	
 	public AsyncDatabase getAsyncDb() {
 		return asyncDb;
 	}
@@ -279,30 +649,27 @@ public class MarketStorage {
 	public Listing queueListing(String seller, ItemStack itemStack, double price, String world) {
 		int itemId = storeItem(itemStack);
 		long time = System.currentTimeMillis();
-		Listing listing = new Listing(listingIndex++, seller, itemId, itemStack.getAmount(), price, world, time);
-		QueueItem item = new QueueItem(queueIndex++, time, listing);
+		Listing listing = new Listing(ids.next(IdAllocator.LISTINGS), seller, itemId, itemStack.getAmount(), price, world, time);
+		QueueItem item = new QueueItem(ids.next(IdAllocator.QUEUE), time, listing);
 		queue.put(item.getId(), item);
-		asyncDb.addStatement(new QueuedStatement("INSERT INTO queue (data) VALUES (?)")
-		.setValue(new Yaml().dump(item)));
+		asyncDb.addStatement(buildQueueStatement(item, "INSERT INTO"));
 		return listing;
 	}
 	
 	public Mail queueMail(String owner, String from, ItemStack itemStack, String world) {
 		int itemId = storeItem(itemStack);
-		Mail mail = new Mail(owner, mailIndex++, itemId, itemStack.getAmount(), 0, from, world);
-		QueueItem item = new QueueItem(queueIndex++, System.currentTimeMillis(), mail);
+		Mail mail = new Mail(owner, ids.next(IdAllocator.MAIL), itemId, itemStack.getAmount(), 0, from, world);
+		QueueItem item = new QueueItem(ids.next(IdAllocator.QUEUE), System.currentTimeMillis(), mail);
 		queue.put(item.getId(), item);
-		asyncDb.addStatement(new QueuedStatement("INSERT INTO queue (data) VALUES (?)")
-		.setValue(new Yaml().dump(item)));
+		asyncDb.addStatement(buildQueueStatement(item, "INSERT INTO"));
 		return mail;
 	}
 	
 	public Mail queueMail(String owner, String from, int itemId, int amount, String world) {
-		Mail mail = new Mail(owner, mailIndex++, itemId, amount, 0, from, world);
-		QueueItem item = new QueueItem(queueIndex++, System.currentTimeMillis(), mail);
+		Mail mail = new Mail(owner, ids.next(IdAllocator.MAIL), itemId, amount, 0, from, world);
+		QueueItem item = new QueueItem(ids.next(IdAllocator.QUEUE), System.currentTimeMillis(), mail);
 		queue.put(item.getId(), item);
-		asyncDb.addStatement(new QueuedStatement("INSERT INTO queue (data) VALUES (?)")
-		.setValue(new Yaml().dump(item)));
+		asyncDb.addStatement(buildQueueStatement(item, "INSERT INTO"));
 		return mail;
 	}
 	
@@ -317,7 +684,9 @@ public class MarketStorage {
 		} else {
 			storeListing(item.getListing());
 		}
-		asyncDb.addStatement(new QueuedStatement("DELETE FROM queue WHERE id=?").setValue(id));
+		asyncDb.addStatement(new QueuedStatement(item.getMail() != null ? "DELETE FROM queue_mail WHERE id=?" : "DELETE FROM queue_listings WHERE id=?")
+		.setValue(id)
+		.setEntity("queue:" + id, Change.DELETE));
 		queue.remove(id);
 	}
 	
@@ -335,6 +704,13 @@ public class MarketStorage {
 		return conf.getItemStack("item").clone();
 	}
 	
+	/*
+	 * Strips control characters that the YAML parser rejects
+	 */
+	public static String sanitizeItemString(String item) {
+		return item.replaceAll("[\\p{Cc}&&[^\r\n\t]]", "");
+	}
+	
 	public static ItemStack itemStackFromString(String item, int amount) {
 		YamlConfiguration conf = new YamlConfiguration();
 		try {
@@ -348,25 +724,85 @@ public class MarketStorage {
 		return null;
 	}
 	
-	public int storeItem(ItemStack item) {
+	public synchronized int storeItem(ItemStack item) {
 		ItemStack storable = item.clone();
 		storable.setAmount(1);
-		for (Entry<Integer, ItemStack> ent : items.entrySet()) {
-			if (ent.getValue().equals(storable)) {
-				return ent.getKey();
+		byte[] data = null;
+		try {
+			data = ItemCodec.encode(storable);
+		} catch(IOException e) {
+			market.log.severe("Item could not be encoded, storing it as YAML:");
+			e.printStackTrace();
+		}
+		Long fingerprint = null;
+		if (data != null) {
+			fingerprint = ItemCodec.fingerprint(data);
+			// Covers items that have been evicted too, so an equal item is never read back to compare it
+			int existing = itemCache.find(fingerprint);
+			if (existing > 0) {
+				return existing;
+			}
+		}
+		final int itemId = ids.next(IdAllocator.ITEMS);
+		QueuedStatement statement;
+		int size;
+		if (data != null) {
+			size = data.length;
+			statement = new QueuedStatement("INSERT INTO items (id, format, data) VALUES (?, ?, ?)")
+			.setValue(itemId)
+			.setValue(ItemCodec.FORMAT_BINARY)
+			.setValue(data);
+		} else {
+			String yaml = itemStackToString(storable);
+			size = yaml.length();
+			statement = new QueuedStatement("INSERT INTO items (id, format, item) VALUES (?, ?, ?)")
+			.setValue(itemId)
+			.setValue(ItemCodec.FORMAT_YAML)
+			.setValue(yaml);
+		}
+		// Keep the item in memory until it can be read back from the database
+		itemCache.pin(itemId, storable, size, fingerprint);
+		asyncDb.addStatement(statement.setCallback(new Runnable() {
+			public void run() {
+				itemCache.unpin(itemId);
 			}
+		}));
+		return itemId;
+	}
+	
+	/**
+	 * Reads any of the given items that aren't in memory on an async task
+	 * @param itemIds Item IDs that are about to be used
+	 * @param loaded Run on the main thread once they've been read, or null
+	 */
+	public void prefetchItems(Collection<Integer> itemIds, Runnable loaded) {
+		itemCache.prefetch(itemIds, loaded);
+	}
+	
+	public ItemCache getItemCache() {
+		return itemCache;
+	}
+	
+	/**
+	 * Gets an item only if it's in memory, so it never waits on the database
+	 * @return ItemStack with the given amount, or null if the item has to be read first
+	 */
+	public ItemStack getCachedItem(int id, int amount) {
+		ItemStack item = itemCache.getIfPresent(id);
+		if (item == null) {
+			return null;
 		}
-		asyncDb.addStatement(new QueuedStatement("INSERT INTO items (item) VALUES (?)")
-		.setValue(storable));
-		items.put(itemIndex, storable);
-		return itemIndex++;
+		item = item.clone();
+		item.setAmount(amount);
+		return item;
 	}
 	
 	public ItemStack getItem(int id, int amount) {
-		if (!items.containsKey(new Integer(id))) {
+		ItemStack item = itemCache.get(id);
+		if (item == null) {
 			market.log.severe("Couldn't find an item with ID " + id);
 		}
-		ItemStack item = items.get(new Integer(id)).clone();
+		item = item.clone();
 		item.setAmount(amount);
 		return item;
 	}
@@ -374,14 +810,18 @@ public class MarketStorage {
 	public Listing createListing(String seller, ItemStack item, double price, String world) {
 		int itemId = storeItem(item);
 		Long time = System.currentTimeMillis();
-		asyncDb.addStatement(new QueuedStatement("INSERT INTO listings (seller, item, amount, price, world, time) VALUES (?, ?, ?, ?, ?, ?)")
+		int id = ids.next(IdAllocator.LISTINGS);
+		asyncDb.addStatement(new QueuedStatement("INSERT INTO listings (id, seller, item, amount, price, world, time) VALUES (?, ?, ?, ?, ?, ?, ?)")
+		.setValue(id)
 		.setValue(seller)
 		.setValue(itemId)
 		.setValue(item.getAmount())
 		.setValue(price)
 		.setValue(world)
-		.setValue(time));
-		Listing listing = new Listing(listingIndex++, seller, itemId, item.getAmount(), price, world, time);
+		.setValue(time)
+		.setEntity("listings:" + id, Change.INSERT));
+		recordChange(ChangeLog.LISTING_ADDED, id);
+		Listing listing = new Listing(id, seller, itemId, item.getAmount(), price, world, time);
 		listings.put(listing.getId(), listing);
 		addWorldItem(listing);
 		addToCondensed(listing);
@@ -400,7 +840,9 @@ public class MarketStorage {
 		.setValue(listing.getAmount())
 		.setValue(listing.getPrice())
 		.setValue(listing.getWorld())
-		.setValue(listing.getTime()));
+		.setValue(listing.getTime())
+		.setEntity("listings:" + listing.getId(), Change.INSERT));
+		recordChange(ChangeLog.LISTING_ADDED, listing.getId());
 		listings.put(listing.getId(), listing);
 		addWorldItem(listing);
 		addToCondensed(listing);
@@ -419,7 +861,9 @@ public class MarketStorage {
 		.setValue(m.getAmount())
 		.setValue(m.getSender())
 		.setValue(m.getWorld())
-		.setValue(m.getPickup()));
+		.setValue(m.getPickup())
+		.setEntity("mail:" + m.getId(), Change.INSERT));
+		recordChange(ChangeLog.MAIL_ADDED, m.getId());
 		mail.put(m.getId(), m);
 		addWorldItem(m);
 		market.notifyPlayer(m.getOwner(), market.getLocale().get("you_have_new_mail"));
@@ -439,16 +883,18 @@ public class MarketStorage {
 	public List<Listing> getListings(String viewer, SortMethod sort, int page, int pageSize, String world) {
 		List<Listing> toReturn = new ArrayList<Listing>();
 		int index = (pageSize * page) - pageSize;
+		if (sort == SortMethod.PRICE_LOWEST || sort == SortMethod.PRICE_HIGHEST) {
+			// Read straight off the price index
+			boolean highest = sort == SortMethod.PRICE_HIGHEST;
+			if (market.enableMultiworld()) {
+				return priceIndex.getPage(getWorldSet(world), highest, index, pageSize);
+			}
+			return priceIndex.getPage(highest, index, pageSize);
+		}
 		List<Listing> list = market.enableMultiworld() ? getListingsForWorld(world) : new ArrayList<Listing>(condensedListings);
 		switch(sort) {
 			default:
 				break;
-			case PRICE_HIGHEST:
-				Collections.sort(list, Listing.Comparators.PRICE_HIGHEST);
-				break;
-			case PRICE_LOWEST:
-				Collections.sort(list, Listing.Comparators.PRICE_LOWEST);
-				break;
 			case AMOUNT_HIGHEST:
 				Collections.sort(list, Listing.Comparators.AMOUNT_HIGHEST);
 				break;
@@ -461,28 +907,93 @@ public class MarketStorage {
 		return toReturn;
 	}
 	
+	/*
+	 * Builds the condensed and per-world listing stacks in a single pass over
+	 * the listing index. Listings are visited oldest first so the oldest listing
+	 * of a stack becomes its head, as it would have with addToCondensed().
+	 */
 	private void buildCondensed() {
-		List<Listing> list = Lists.reverse(new ArrayList<Listing>(listings.values()));
-		Collections.sort(list);
-		Iterator<Listing> it = list.iterator();
-		Listing stackStarter = null;
-		while(it.hasNext()) {
-			Listing current = it.next();
+		Map<String, Listing> stacks = new HashMap<String, Listing>();
+		Map<String, Map<String, Listing>> worldStacks = new HashMap<String, Map<String, Listing>>();
+		List<Listing> condensed = new ArrayList<Listing>();
+		worldListings.clear();
+		sellerIndex.clear();
+		for (Listing listing : listings.values()) {
+			sellerIndex.add(listing.getSeller().toLowerCase(), listing.getWorld(), listing);
+			String key = getStackKey(listing);
+			Listing stackStarter = stacks.get(key);
 			if (stackStarter == null) {
-				stackStarter = current;
+				stacks.put(key, listing);
+				condensed.add(listing);
+			} else {
+				stackStarter.getSiblings().add(listing);
 			}
-			if (!stackStarter.equals(current) && stackStarter.isStackable(current)) {
-				stackStarter.addSibling(current);
-				it.remove();
-			} else if (!stackStarter.isStackable(current)) {
-				stackStarter = current;
+			String world = listing.getWorld();
+			if (!worldStacks.containsKey(world)) {
+				worldStacks.put(world, new HashMap<String, Listing>());
+				worldListings.put(world, new ArrayList<Listing>());
+			}
+			if (!worldStacks.get(world).containsKey(key)) {
+				worldStacks.get(world).put(key, listing);
+				worldListings.get(world).add(listing);
+			}
+		}
+		// Newest stacks first
+		Collections.reverse(condensed);
+		priceIndex.clear();
+		for (Entry<String, List<Listing>> world : worldListings.entrySet()) {
+			Collections.reverse(world.getValue());
+			for (Listing head : world.getValue()) {
+				priceIndex.addToWorld(world.getKey(), head);
 			}
 		}
 		condensedListings.clear();
-		condensedListings.addAll(list);
+		condensedListings.addAll(condensed);
+		for (Listing head : condensed) {
+			priceIndex.add(head);
+		}
+	}
+	
+	/*
+	 * Needs the items, so it runs once the item cache has been loaded. Items that aren't in memory are
+	 * read a chunk at a time and dropped once their listings are indexed, so the cache keeps what it loaded
+	 */
+	private void buildSearchIndex(Database db, Collection<Listing> toIndex) {
+		final Map<Integer, List<Listing>> byItem = new HashMap<Integer, List<Listing>>();
+		for (Listing listing : toIndex) {
+			List<Listing> sharing = byItem.get(listing.getItemId());
+			if (sharing == null) {
+				sharing = new ArrayList<Listing>(1);
+				byItem.put(listing.getItemId(), sharing);
+			}
+			sharing.add(listing);
+		}
+		itemCache.scan(db, byItem.keySet(), new ItemCache.ItemVisitor() {
+			public void visit(int id, ItemStack item) {
+				for (Listing listing : byItem.get(id)) {
+					ItemStack stack = item.clone();
+					stack.setAmount(listing.getAmount());
+					searchIndex.add(listing, stack, market.getItemName(stack));
+				}
+			}
+		});
+	}
+	
+	private void indexListing(Listing listing) {
+		ItemStack item = getItem(listing.getItemId(), listing.getAmount());
+		searchIndex.add(listing, item, market.getItemName(item));
+	}
+	
+	/*
+	 * Two listings share a key when Listing.isStackable() holds for them
+	 */
+	private static String getStackKey(Listing listing) {
+		return listing.getSeller().toLowerCase() + ":" + listing.getItemId() + ":" + (listing.getPrice() / listing.getAmount());
 	}
 	
 	private void addToCondensed(Listing listing) {
+		indexListing(listing);
+		sellerIndex.add(listing.getSeller().toLowerCase(), listing.getWorld(), listing);
 		for (int i = 0; i < condensedListings.size(); i++) {
 			Listing l = condensedListings.get(i);
 			if (l.isStackable(listing)) {
@@ -491,6 +1002,7 @@ public class MarketStorage {
 			}
 		}
 		condensedListings.add(0, listing);
+		priceIndex.add(listing);
 		
 		// TODO: locale support
 		if (market.announceOnCreate()) {
@@ -527,63 +1039,57 @@ public class MarketStorage {
 	}
 	
 	private void removeFromCondensed(Listing listing) {
+		searchIndex.remove(listing.getId());
+		sellerIndex.remove(listing.getSeller().toLowerCase(), listing.getWorld(), listing);
 		List<Listing> world = worldListings.get(listing.getWorld());
 		int index = condensedListings.indexOf(listing);
 		if (index >= 0) {
 			List<Listing> siblings = condensedListings.get(index).getSiblings();
 			condensedListings.remove(index);
+			priceIndex.remove(listing);
 			int worldIndex = world.indexOf(listing);
 			if (worldIndex >= 0) {
 				world.remove(worldIndex);
+				priceIndex.removeFromWorld(listing.getWorld(), listing);
 			}
 			if (siblings.size() > 0) {
 				Listing next = siblings.get(0);
 				condensedListings.add(index, next);
+				priceIndex.add(next);
 				siblings.remove(next);
 				next.setSiblings(siblings);
 				if (worldIndex >= 0) {
 					world.add(worldIndex, next);
+					priceIndex.addToWorld(listing.getWorld(), next);
 				}
 			}
 		}
 	}
 	
 	public List<Listing> getOwnedListings(int page, int pageSize, String world, String name) {
-		List<Listing> list = new ArrayList<Listing>();
-		for (Listing listing : market.enableMultiworld() ? getListingsForWorld(world) : listings.values()) {
-			if (listing.getSeller().equalsIgnoreCase(name)) {
-				list.add(listing);
-			}
-		}
 		int index = (pageSize * page) - pageSize;
-		List<Listing> toReturn = new ArrayList<Listing>();
-		while (list.size() > index && toReturn.size() < pageSize) {
-			toReturn.add(list.get(index));
-			index++;
+		if (market.enableMultiworld()) {
+			return sellerIndex.getPage(name.toLowerCase(), getWorldSet(world), index, pageSize, false);
 		}
-		return toReturn;
+		return sellerIndex.getPage(name.toLowerCase(), index, pageSize, false);
 	}
 	
 	public synchronized List<Listing> getAllListings() {
 		return new ArrayList<Listing>(listings.values());
 	}
 	
-	@SuppressWarnings("deprecation")
 	public SearchResult getListings(String viewer, SortMethod sort, int page, int pageSize, String search, String world) {
 		List<Listing> found = new ArrayList<Listing>();
-		List<Listing> list = market.enableMultiworld() ? getListingsForWorld(world) : new ArrayList<Listing>(condensedListings);
-		for (Listing listing : list) {
-			ItemStack item = getItem(listing.getItemId(), listing.getAmount());
-			String itemName = market.getItemName(item);
-			if (itemName.toLowerCase().contains(search.toLowerCase())
-					|| isItemId(search, item.getTypeId())
-					|| isInDisplayName(search.toLowerCase(), item)
-					|| isInEnchants(search.toLowerCase(), item)
-					|| isInLore(search.toLowerCase(), item)
-					|| search.equalsIgnoreCase(Integer.toString(listing.getId()))) {
+		Set<String> worlds = market.enableMultiworld() ? getWorldSet(world) : null;
+		for (int id : searchIndex.find(search)) {
+			Listing listing = getListing(id);
+			// Only stack heads are shown, the rest of a stack is listed under its head
+			if (listing != null && (worlds == null ? priceIndex.isHead(listing) : priceIndex.isHead(worlds, listing))) {
 				found.add(listing);
 			}
 		}
+		// Newest first, same as the unsearched listings
+		Collections.sort(found, Listing.Comparators.NEWEST);
 		switch(sort) {
 			default:
 				break;
@@ -611,7 +1117,147 @@ public class MarketStorage {
 		removeFromCondensed(listing);
 		listings.remove(id);
 		asyncDb.addStatement(new QueuedStatement("DELETE FROM listings WHERE id=?")
-		.setValue(id));
+		.setValue(id)
+		.setEntity("listings:" + id, Change.DELETE));
+		recordChange(ChangeLog.LISTING_REMOVED, id);
+	}
+	
+	public interface ClaimCallback {
+		
+		/**
+		 * Called on the main thread once a claim has been decided
+		 * @param claimed True if the listing is now ours to sell or remove
+		 */
+		void claimed(boolean claimed);
+	}
+	
+	/**
+	 * Claims a listing before it's sold or taken down by deleting its row, which only one
+	 * server can do. The delete runs on the DB queue's thread after anything already queued.
+	 * A claimed listing must be finished with completeClaim() or cancelClaim()
+	 * @param listing Listing to claim
+	 * @param callback Told whether the claim succeeded, on the main thread
+	 */
+	public void claimListing(final Listing listing, final ClaimCallback callback) {
+		final int id = listing.getId();
+		if (!claims.add(id)) {
+			// Already being bought or removed here
+			callback.claimed(false);
+			return;
+		}
+		try {
+			asyncDb.submit(new Runnable() {
+				public void run() {
+					final int result = deleteListingRow(id);
+					market.getServer().getScheduler().runTask(market, new Runnable() {
+						public void run() {
+							finishClaim(listing, result, callback);
+						}
+					});
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			claims.remove(id);
+			callback.claimed(false);
+		}
+	}
+	
+	/**
+	 * Claims a listing and waits for the result, for callers that aren't on the main thread
+	 * @param listing Listing to claim
+	 * @return True if the listing is now ours to sell or remove
+	 */
+	public boolean claimListingNow(Listing listing) {
+		final int id = listing.getId();
+		if (!claims.add(id)) {
+			return false;
+		}
+		int result = -1;
+		try {
+			result = asyncDb.submit(new Callable<Integer>() {
+				public Integer call() {
+					return deleteListingRow(id);
+				}
+			}).get(market.getShutdownTimeout(), TimeUnit.MILLISECONDS);
+		} catch(Exception e) {
+			market.log.severe("Couldn't claim listing " + id + ": " + e.getMessage());
+		}
+		finishClaim(listing, result, null);
+		return result == 1;
+	}
+	
+	/*
+	 * Returns the number of rows deleted, or -1 if the database couldn't be reached
+	 */
+	private int deleteListingRow(int id) {
+		try {
+			return asyncDb.executeNow(new QueuedStatement("DELETE FROM listings WHERE id=?")
+					.setValue(id)
+					.setEntity("listings:" + id, Change.DELETE));
+		} catch(SQLException e) {
+			market.log.severe("Couldn't claim listing " + id + ": " + e.getMessage());
+			return -1;
+		}
+	}
+	
+	private void finishClaim(Listing listing, int result, ClaimCallback callback) {
+		if (result != 1) {
+			claims.remove(listing.getId());
+			if (result == 0) {
+				// Sold or removed by another server, it just hasn't synced yet
+				dropListing(listing.getId());
+				if (market.getInterfaceHandler() != null) {
+					// claimListingNow() finishes on whatever thread called it, interfaces are only touched on the main thread
+					market.getServer().getScheduler().runTask(market, new Runnable() {
+						public void run() {
+							market.getInterfaceHandler().updateAllViewers();
+						}
+					});
+				}
+			}
+		}
+		if (callback != null) {
+			callback.claimed(result == 1);
+		}
+	}
+	
+	/**
+	 * Removes a claimed listing from memory once it's been sold or taken down. Its row is already gone
+	 */
+	public synchronized void completeClaim(Listing listing) {
+		dropListing(listing.getId());
+		recordChange(ChangeLog.LISTING_REMOVED, listing.getId());
+		claims.remove(listing.getId());
+	}
+	
+	/**
+	 * Puts a claimed listing's row back after a sale fell through
+	 */
+	public void cancelClaim(Listing listing) {
+		asyncDb.addStatement(new QueuedStatement("INSERT INTO listings (id, seller, item, amount, price, world, time) VALUES (?, ?, ?, ?, ?, ?, ?)")
+		.setValue(listing.getId())
+		.setValue(listing.getSeller())
+		.setValue(listing.getItemId())
+		.setValue(listing.getAmount())
+		.setValue(listing.getPrice())
+		.setValue(listing.getWorld())
+		.setValue(listing.getTime())
+		.setEntity("listings:" + listing.getId(), Change.INSERT));
+		// Another server may have dropped it after failing to claim it while the row was gone
+		recordChange(ChangeLog.LISTING_ADDED, listing.getId());
+		claims.remove(listing.getId());
+	}
+	
+	public boolean isClaimed(int id) {
+		return claims.contains(id);
+	}
+	
+	private synchronized void dropListing(int id) {
+		Listing listing = listings.get(id);
+		if (listing != null) {
+			removeFromCondensed(listing);
+			listings.remove(id);
+		}
 	}
 	
 	public int getNumListings(String world) {
@@ -619,13 +1265,10 @@ public class MarketStorage {
 	}
 	
 	public int getNumListingsFor(String name, String world) {
-		int amount = 0;
-		for (Listing listing : market.enableMultiworld() ? getListingsForWorld(world) : listings.values()) {
-			if (listing.getSeller().equalsIgnoreCase(name)) {
-				amount++;
-			}
+		if (market.enableMultiworld()) {
+			return sellerIndex.count(name.toLowerCase(), getWorldSet(world));
 		}
-		return amount;
+		return sellerIndex.count(name.toLowerCase());
 	}
 	
 	public Map<Integer, Listing> getCachedListingIndex() {
@@ -633,14 +1276,18 @@ public class MarketStorage {
 	}
 	
 	public Mail createMail(String owner, String from, int itemId, int amount, String world) {
-		asyncDb.addStatement(new QueuedStatement("INSERT INTO mail (owner, item, amount, sender, world, pickup) VALUES (?, ?, ?, ?, ?, ?)")
+		int id = ids.next(IdAllocator.MAIL);
+		asyncDb.addStatement(new QueuedStatement("INSERT INTO mail (id, owner, item, amount, sender, world, pickup) VALUES (?, ?, ?, ?, ?, ?, ?)")
+		.setValue(id)
 		.setValue(owner)
 		.setValue(itemId)
 		.setValue(amount)
 		.setValue(from)
 		.setValue(world)
-		.setValue(0));
-		Mail m = new Mail(owner, mailIndex++, itemId, amount, 0, from, world);
+		.setValue(0)
+		.setEntity("mail:" + id, Change.INSERT));
+		recordChange(ChangeLog.MAIL_ADDED, id);
+		Mail m = new Mail(owner, id, itemId, amount, 0, from, world);
 		mail.put(m.getId(), m);
 		addWorldItem(m);
 		if (market.getInterfaceHandler() != null) {
@@ -652,14 +1299,18 @@ public class MarketStorage {
 	
 	public Mail createMail(String owner, String from, ItemStack item, double pickup, String world) {
 		int itemId = storeItem(item);
-		asyncDb.addStatement(new QueuedStatement("INSERT INTO mail (owner, item, amount, sender, world, pickup) VALUES (?, ?, ?, ?, ?, ?)")
+		int id = ids.next(IdAllocator.MAIL);
+		asyncDb.addStatement(new QueuedStatement("INSERT INTO mail (id, owner, item, amount, sender, world, pickup) VALUES (?, ?, ?, ?, ?, ?, ?)")
+		.setValue(id)
 		.setValue(owner)
 		.setValue(itemId)
 		.setValue(item.getAmount())
 		.setValue(from)
 		.setValue(world)
-		.setValue(pickup));
-		Mail m = new Mail(owner, mailIndex++, itemId, item.getAmount(), pickup, from, world);
+		.setValue(pickup)
+		.setEntity("mail:" + id, Change.INSERT));
+		recordChange(ChangeLog.MAIL_ADDED, id);
+		Mail m = new Mail(owner, id, itemId, item.getAmount(), pickup, from, world);
 		mail.put(m.getId(), m);
 		addWorldItem(m);
 		if (market.getInterfaceHandler() != null) {
@@ -695,26 +1346,21 @@ public class MarketStorage {
 		return null;
 	}
 	
-	public List<Mail> getMail(final String owner, int page, int pageSize, final String world) {
-		Collection<Mail> ownedMail = Collections2.filter(market.enableMultiworld() ? getMailForWorld(world) : mail.values(), new Predicate<Mail>() {
-			public boolean apply(Mail mail) {
-				return mail.getOwner().equals(owner);
-			}
-		});
-		List<Mail> toReturn = new ArrayList<Mail>();
+	public List<Mail> getMail(String owner, int page, int pageSize, String world) {
 		int index = (pageSize * page) - pageSize;
-		List<Mail> list = Lists.reverse(new ArrayList<Mail>(ownedMail));
-		while (ownedMail.size() > index && toReturn.size() < pageSize) {
-			toReturn.add(list.get(index));
-			index++;
+		if (market.enableMultiworld()) {
+			return mailIndex.getPage(owner, getWorldSet(world), index, pageSize, true);
 		}
-		return toReturn;
+		return mailIndex.getPage(owner, index, pageSize, true);
 	}
 	
 	public void nullifyMailPayment(int id) {
 		asyncDb.addStatement(new QueuedStatement("UPDATE mail SET pickup=? WHERE id=?")
 		.setValue(0)
-		.setValue(id));
+		.setValue(id)
+		.setEntity("mail:" + id, Change.UPDATE)
+		.setReplaceKey("mail.pickup:" + id));
+		recordChange(ChangeLog.MAIL_PICKUP_CLEARED, id);
 		if (mail.containsKey(id)) {
 			Mail m = mail.get(id);
 			m.setPickup(0);
@@ -728,22 +1374,22 @@ public class MarketStorage {
 	public void removeMail(int id) {
 		Mail m = mail.get(id);
 		mail.remove(id);
-		worldMail.get(m.getWorld()).remove(m);
+		removeWorldItem(m);
 		asyncDb.addStatement(new QueuedStatement("DELETE FROM mail WHERE id=?")
-		.setValue(id));
+		.setValue(id)
+		.setEntity("mail:" + id, Change.DELETE));
+		recordChange(ChangeLog.MAIL_REMOVED, id);
 		if (market.getInterfaceHandler() != null) {
 			// This will be null if the importer is running
 			market.getInterfaceHandler().refreshViewer(m.getOwner(), "Mail");
 		}
 	}
 	
-	public int getNumMail(final String player, final String world) {
-		Collection<Mail> ownedMail = Collections2.filter(market.enableMultiworld() ? getMailForWorld(world) : mail.values(), new Predicate<Mail>() {
-				public boolean apply(Mail mail) {
-					return mail.getOwner().equals(player);
-				}
-			});
-		return ownedMail.size();
+	public int getNumMail(String player, String world) {
+		if (market.enableMultiworld()) {
+			return mailIndex.count(player, getWorldSet(world));
+		}
+		return mailIndex.count(player);
 	}
 	
 	/*
@@ -0,0 +1,143 @@
+package com.survivorserver.GlobalMarket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Items grouped by owner, in the order they were added, for every world and for
+ * each world on its own. Counts come straight from the group sizes and pages are
+ * cut out of them, so neither depends on how many items other owners have.
+ * Owners are used as given, normalize them first where case shouldn't matter.
+ */
+public class OwnerIndex<T> {
+	
+	private Map<String, List<T>> all;
+	private Map<String, Map<String, List<T>>> worlds;
+	
+	public OwnerIndex() {
+		all = new HashMap<String, List<T>>();
+		worlds = new HashMap<String, Map<String, List<T>>>();
+	}
+	
+	public synchronized void clear() {
+		all.clear();
+		worlds.clear();
+	}
+	
+	public synchronized void add(String owner, String world, T item) {
+		List<T> owned = all.get(owner);
+		if (owned == null) {
+			owned = new ArrayList<T>();
+			all.put(owner, owned);
+		}
+		owned.add(item);
+		Map<String, List<T>> byWorld = worlds.get(owner);
+		if (byWorld == null) {
+			byWorld = new HashMap<String, List<T>>();
+			worlds.put(owner, byWorld);
+		}
+		List<T> inWorld = byWorld.get(world);
+		if (inWorld == null) {
+			inWorld = new ArrayList<T>();
+			byWorld.put(world, inWorld);
+		}
+		inWorld.add(item);
+	}
+	
+	public synchronized void remove(String owner, String world, T item) {
+		List<T> owned = all.get(owner);
+		if (owned != null && owned.remove(item) && owned.isEmpty()) {
+			all.remove(owner);
+		}
+		Map<String, List<T>> byWorld = worlds.get(owner);
+		if (byWorld == null) {
+			return;
+		}
+		List<T> inWorld = byWorld.get(world);
+		if (inWorld != null && inWorld.remove(item) && inWorld.isEmpty()) {
+			byWorld.remove(world);
+			if (byWorld.isEmpty()) {
+				worlds.remove(owner);
+			}
+		}
+	}
+	
+	public synchronized int count(String owner) {
+		List<T> owned = all.get(owner);
+		return owned == null ? 0 : owned.size();
+	}
+	
+	public synchronized int count(String owner, Collection<String> worldNames) {
+		Map<String, List<T>> byWorld = worlds.get(owner);
+		if (byWorld == null) {
+			return 0;
+		}
+		int count = 0;
+		for (String world : worldNames) {
+			List<T> inWorld = byWorld.get(world);
+			if (inWorld != null) {
+				count += inWorld.size();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * A page of an owner's items in every world
+	 * @param offset Items to skip
+	 * @param pageSize Items to return at most
+	 * @param newestFirst True to page from the last added item back
+	 */
+	public synchronized List<T> getPage(String owner, int offset, int pageSize, boolean newestFirst) {
+		List<T> page = new ArrayList<T>();
+		List<T> owned = all.get(owner);
+		if (owned != null) {
+			addPage(owned, Math.max(0, offset), pageSize, newestFirst, page);
+		}
+		return page;
+	}
+	
+	/**
+	 * A page of an owner's items in a set of worlds, world by world. Newest first walks
+	 * the worlds backwards too, as if they were one list read from the end
+	 * @param worldNames The world and the worlds linked to it
+	 */
+	public synchronized List<T> getPage(String owner, Collection<String> worldNames, int offset, int pageSize, boolean newestFirst) {
+		List<T> page = new ArrayList<T>();
+		Map<String, List<T>> byWorld = worlds.get(owner);
+		if (byWorld == null) {
+			return page;
+		}
+		List<String> order = new ArrayList<String>(worldNames);
+		if (newestFirst) {
+			Collections.reverse(order);
+		}
+		int skip = Math.max(0, offset);
+		for (String world : order) {
+			List<T> inWorld = byWorld.get(world);
+			if (inWorld == null) {
+				continue;
+			}
+			if (skip >= inWorld.size()) {
+				skip -= inWorld.size();
+				continue;
+			}
+			addPage(inWorld, skip, pageSize, newestFirst, page);
+			skip = 0;
+			if (page.size() >= pageSize) {
+				break;
+			}
+		}
+		return page;
+	}
+	
+	private static <T> void addPage(List<T> items, int skip, int pageSize, boolean newestFirst, List<T> page) {
+		for (int i = skip; i < items.size() && page.size() < pageSize; i++) {
+			page.add(items.get(newestFirst ? items.size() - 1 - i : i));
+		}
+	}
+}
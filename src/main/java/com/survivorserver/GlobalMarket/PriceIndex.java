@@ -0,0 +1,145 @@
+package com.survivorserver.GlobalMarket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Stack heads ordered by price, then ID, kept for the whole market and for each
+ * world. It's updated alongside the condensed listings so pages sorted by price
+ * can be read straight off it instead of sorting every listing per render.
+ */
+public class PriceIndex {
+	
+	private static final Comparator<Listing> PRICE_THEN_ID = new Comparator<Listing>() {
+		@Override
+		public int compare(Listing o1, Listing o2) {
+			int c = Double.compare(o1.getPrice(), o2.getPrice());
+			return c != 0 ? c : (o1.getId() < o2.getId() ? -1 : (o1.getId() == o2.getId() ? 0 : 1));
+		}
+	};
+	
+	private TreeSet<Listing> all;
+	private Map<String, TreeSet<Listing>> worlds;
+	
+	public PriceIndex() {
+		all = new TreeSet<Listing>(PRICE_THEN_ID);
+		worlds = new HashMap<String, TreeSet<Listing>>();
+	}
+	
+	public synchronized void clear() {
+		all.clear();
+		worlds.clear();
+	}
+	
+	public synchronized void add(Listing head) {
+		all.add(head);
+	}
+	
+	public synchronized void remove(Listing head) {
+		all.remove(head);
+	}
+	
+	public synchronized void addToWorld(String world, Listing head) {
+		TreeSet<Listing> set = worlds.get(world);
+		if (set == null) {
+			set = new TreeSet<Listing>(PRICE_THEN_ID);
+			worlds.put(world, set);
+		}
+		set.add(head);
+	}
+	
+	public synchronized void removeFromWorld(String world, Listing head) {
+		TreeSet<Listing> set = worlds.get(world);
+		if (set != null) {
+			set.remove(head);
+		}
+	}
+	
+	public synchronized boolean isHead(Listing listing) {
+		return all.contains(listing);
+	}
+	
+	public synchronized boolean isHead(Collection<String> worldNames, Listing listing) {
+		for (String world : worldNames) {
+			TreeSet<Listing> set = worlds.get(world);
+			if (set != null && set.contains(listing)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * A page of stack heads across the whole market
+	 * @param highest True for highest price first
+	 * @param offset Heads to skip
+	 * @param pageSize Heads to return at most
+	 */
+	public synchronized List<Listing> getPage(boolean highest, int offset, int pageSize) {
+		List<Iterator<Listing>> sources = new ArrayList<Iterator<Listing>>();
+		sources.add(highest ? all.descendingIterator() : all.iterator());
+		return merge(sources, highest, offset, pageSize);
+	}
+	
+	/**
+	 * A page of stack heads from a set of worlds, merged as if they were one list
+	 * @param worldNames The world and the worlds linked to it
+	 */
+	public synchronized List<Listing> getPage(Collection<String> worldNames, boolean highest, int offset, int pageSize) {
+		List<Iterator<Listing>> sources = new ArrayList<Iterator<Listing>>();
+		for (String world : worldNames) {
+			NavigableSet<Listing> set = worlds.get(world);
+			if (set != null && !set.isEmpty()) {
+				sources.add(highest ? set.descendingIterator() : set.iterator());
+			}
+		}
+		return merge(sources, highest, offset, pageSize);
+	}
+	
+	/*
+	 * k-way merge of already ordered iterators. Only a handful of worlds are ever
+	 * linked, so the next head is picked with a linear scan over the sources.
+	 */
+	private static List<Listing> merge(List<Iterator<Listing>> sources, boolean highest, int offset, int pageSize) {
+		List<Listing> page = new ArrayList<Listing>();
+		Listing[] heads = new Listing[sources.size()];
+		for (int i = 0; i < heads.length; i++) {
+			heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+		}
+		int skipped = 0;
+		while (page.size() < pageSize) {
+			int next = -1;
+			for (int i = 0; i < heads.length; i++) {
+				if (heads[i] == null) {
+					continue;
+				}
+				if (next < 0) {
+					next = i;
+				} else {
+					int c = PRICE_THEN_ID.compare(heads[i], heads[next]);
+					if (highest ? c > 0 : c < 0) {
+						next = i;
+					}
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			if (skipped < offset) {
+				skipped++;
+			} else {
+				page.add(heads[next]);
+			}
+			Iterator<Listing> source = sources.get(next);
+			heads[next] = source.hasNext() ? source.next() : null;
+		}
+		return page;
+	}
+}
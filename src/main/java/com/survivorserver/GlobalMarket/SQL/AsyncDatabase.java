@@ -1,27 +1,90 @@
 package com.survivorserver.GlobalMarket.SQL;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-
-import org.bukkit.scheduler.BukkitRunnable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.survivorserver.GlobalMarket.Market;
 
+/**
+ * Writes queued statements on a single thread owned by this class. A flush
+ * starts once the oldest waiting statement is flushInterval ms old or flushSize
+ * statements are waiting, whichever comes first.
+ */
 public class AsyncDatabase {
-
+	
 	private Market market;
-	private List<QueuedStatement> queue;
-	private AtomicBoolean isProcessing;
-	private int taskId = -1;
+	private Queue<QueuedStatement> queue;
+	private AtomicInteger queueSize;
+	private ReentrantLock flushLock;
+	private volatile ScheduledExecutorService executor;
+	// Set while a delayed flush is waiting to run
+	private AtomicBoolean flushScheduled;
+	private long flushInterval;
+	private int flushSize;
+	private int maxBatchSize;
+	private int backlogWarn;
+	private int backlogDefer;
+	private long lastBacklogWarning;
+	// Statements taken off the queue that haven't been committed yet, only touched while holding flushLock
+	private List<QueuedStatement> pending;
+	// Statements in pending that were made redundant by later ones, they're skipped and compacted away
+	private int coalescedPending;
+	private StatementCoalescer coalescer;
+	// Journal positions of statements that cancelled out, committed along with the next write
+	private List<Long> resolved;
+	// Deferrable statements held back while the queue is over backlogDefer, only touched while holding flushLock
+	private List<QueuedStatement> deferred;
+	// Creation time of the oldest statement taken off the queue but not yet committed, 0 if there are none
+	private volatile long oldestPending;
+	private QueueMetrics metrics;
+	private StatementJournal journal;
+	// Rows in queue_commits below this are no longer needed, they're deleted with the next write
+	private long pruneBelow;
+	// False once a commit record couldn't be written to the journal, its rows have to stay until it's emptied
+	private boolean journalIntact = true;
 	private Database db;
 	
 	public AsyncDatabase(Market market) {
 		this.market = market;
-		queue = new CopyOnWriteArrayList<QueuedStatement>();
-		isProcessing = new AtomicBoolean();
-		isProcessing.set(false);
+		queue = new ConcurrentLinkedQueue<QueuedStatement>();
+		queueSize = new AtomicInteger();
+		flushLock = new ReentrantLock();
+		flushScheduled = new AtomicBoolean();
+		pending = new ArrayList<QueuedStatement>();
+		coalescer = new StatementCoalescer();
+		resolved = new ArrayList<Long>();
+		deferred = new ArrayList<QueuedStatement>();
+		metrics = new QueueMetrics();
+		loadSettings();
+	}
+	
+	private void loadSettings() {
+		flushInterval = Math.max(1, market.getFlushInterval());
+		flushSize = Math.max(1, market.getFlushSize());
+		maxBatchSize = Math.max(1, market.getMaxBatchSize());
+		backlogWarn = Math.max(1, market.getBacklogWarn());
+		backlogDefer = Math.max(backlogWarn, market.getBacklogDefer());
 	}
 	
 	public void startTask() {
@@ -29,77 +92,701 @@ public class AsyncDatabase {
 			db = market.getConfigHandler().createConnection();
 			db.connect();
 		}
-		taskId = new BukkitRunnable() {
-			
-			@Override
-			public void run() {
-				processQueue(false);
-				if (market.isEnabled()) {
-					startTask();
+		loadSettings();
+		if (executor != null) {
+			return;
+		}
+		ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "GlobalMarket DB writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// Delayed flushes are replaced by the final flush on shutdown
+		ex.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		executor = ex;
+		flushScheduled.set(false);
+		if (getQueueSize() > 0) {
+			// Statements queued while loading, or left over from before a reload
+			execute(journalTask);
+			scheduleFlush(flushInterval);
+		}
+	}
+	
+	private final Runnable journalTask = new Runnable() {
+		public void run() {
+			// Journal right away, only the DB write waits for more statements
+			flushLock.lock();
+			try {
+				takeQueued();
+				updateOldestPending();
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	};
+	
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			processQueue(false);
+			if (getQueueSize() > 0) {
+				// Left over after a failed write, try again once the connection may be back
+				scheduleFlush(Math.max(flushInterval, db != null ? db.getRetryDelay() : 0));
+			}
+		}
+	};
+	
+	private void scheduleFlush(long delay) {
+		ScheduledExecutorService ex = executor;
+		if (ex != null && flushScheduled.compareAndSet(false, true)) {
+			try {
+				ex.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+			} catch(RejectedExecutionException e) {
+				flushScheduled.set(false);
+			}
+		}
+	}
+	
+	private void execute(Runnable task) {
+		ScheduledExecutorService ex = executor;
+		if (ex != null) {
+			try {
+				ex.execute(task);
+			} catch(RejectedExecutionException ignored) {
+				// Shutting down, whatever is queued is left to the final flush
+			}
+		}
+	}
+	
+	/**
+	 * Runs a task on the DB queue's thread, after any flush already running or waiting to run immediately
+	 * @param task Task to run
+	 * @return Future for the task
+	 * @throws RejectedExecutionException If the queue isn't running
+	 */
+	public Future<?> submit(Runnable task) {
+		ScheduledExecutorService ex = executor;
+		if (ex == null) {
+			throw new RejectedExecutionException("DB queue isn't running");
+		}
+		return ex.submit(task);
+	}
+	
+	/**
+	 * Runs a task on the DB queue's thread
+	 * @param task Task to run
+	 * @return Future for the task's result
+	 * @throws RejectedExecutionException If the queue isn't running
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		ScheduledExecutorService ex = executor;
+		if (ex == null) {
+			throw new RejectedExecutionException("DB queue isn't running");
+		}
+		return ex.submit(task);
+	}
+	
+	/**
+	 * Runs a statement right away and reports how many rows it changed, for statements whose result
+	 * matters, like a conditional delete. If the row it's for is still waiting to be inserted, the
+	 * queue is written first. Must be called on the DB queue's thread, through submit()
+	 * @param statement Statement to run, with its entity set
+	 * @return Number of rows changed
+	 * @throws SQLException If the statement failed or the row's insert couldn't be written first
+	 */
+	public int executeNow(QueuedStatement statement) throws SQLException {
+		flushLock.lock();
+		try {
+			// Indexes everything queued by entity
+			takeQueued();
+			String entity = statement.getEntity();
+			if (entity != null && coalescer.hasInsert(entity)) {
+				flush(false);
+				if (coalescer.hasInsert(entity)) {
+					throw new SQLException("Couldn't write the DB queue");
 				}
 			}
-		}.runTaskLaterAsynchronously(market, taskId == -1 ? 0 : 1200).getTaskId();
+			if (!db.isConnected() && !db.connect()) {
+				throw new SQLException("Couldn't connect to the database");
+			}
+			MarketStatement prepared = statement.buildStatement(db);
+			if (prepared == null) {
+				throw new SQLException("Couldn't build statement " + statement.getQuery());
+			}
+			try {
+				return prepared.executeUpdate();
+			} catch(SQLException e) {
+				db.invalidate();
+				throw e;
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes everything queued so far and waits for it to finish
+	 * @param timeout Longest time to wait in ms
+	 * @return True if nothing was left waiting
+	 */
+	public boolean drain(long timeout) {
+		Future<?> done;
+		try {
+			done = submit(new Runnable() {
+				public void run() {
+					processQueue(false);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			processQueue(false);
+			return getQueueSize() == 0;
+		}
+		await(done, timeout);
+		return getQueueSize() == 0;
+	}
+	
+	/**
+	 * Writes everything queued so far and stops the DB queue's thread. Statements queued
+	 * afterwards wait until startTask() is called again
+	 * @param timeout Longest time to wait for the queue to be written in ms. If it's not done
+	 * by then the write is interrupted and what's left is replayed from the journal on the next start
+	 * @return True if the queue was written in time
+	 */
+	public boolean shutdown(long timeout) {
+		ScheduledExecutorService ex = executor;
+		if (ex == null) {
+			return getQueueSize() == 0;
+		}
+		executor = null;
+		Future<?> done = ex.submit(new Runnable() {
+			public void run() {
+				processQueue(true);
+			}
+		});
+		ex.shutdown();
+		await(done, timeout);
+		try {
+			if (!ex.awaitTermination(Math.max(0, timeout), TimeUnit.MILLISECONDS)) {
+				ex.shutdownNow();
+			}
+		} catch(InterruptedException e) {
+			ex.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		int left = getQueueSize();
+		if (left > 0) {
+			market.log.severe("DB queue didn't finish within " + timeout + "ms, " + left + " statements weren't written"
+					+ (journal != null ? " and will be replayed from the journal on the next start" : ""));
+		}
+		return left == 0;
+	}
+	
+	private void await(Future<?> done, long timeout) {
+		try {
+			done.get(timeout, TimeUnit.MILLISECONDS);
+		} catch(TimeoutException e) {
+			done.cancel(true);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			market.log.severe("Error while processing DB queue:");
+			e.getCause().printStackTrace();
+		}
 	}
 	
 	public void processQueue(boolean debug) {
+		flushLock.lock();
+		try {
+			flush(debug);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+	
+	private void flush(boolean debug) {
 		if (debug) {
 			market.log.info("#### DB Queue started ####");
 		}
 		long started = System.currentTimeMillis();
+		long startedNanos = System.nanoTime();
 		if (!db.isConnected()) {
 			if (debug) {
 				market.log.info("DB has disconnected. Reconnecting...");
 			}
-			db.connect();
+			if (!db.connect()) {
+				// Keep journaling, everything is written once the connection is back
+				takeQueued();
+				if (debug) {
+					market.log.info("Couldn't reconnect, " + getQueueSize() + " statements are still waiting");
+				}
+				return;
+			}
 		}
 		try {
-			if (queue.size() > 0) {
-				isProcessing.set(true);
+			takeQueued();
+			if (!pending.isEmpty()) {
 				if (debug) {
-					market.log.info("Processing database queue (size: " + queue.size() + ")");
+					market.log.info("Processing database queue (size: " + (pending.size() - coalescedPending) + ")");
 				}
-				List<QueuedStatement> processed = new ArrayList<QueuedStatement>();
-				for (QueuedStatement statement : queue) {
-					if (market.haultSync()) {
+				int processed = 0;
+				while (!pending.isEmpty()) {
+					List<QueuedStatement> batch = nextBatch();
+					if (batch.isEmpty()) {
+						// Only coalesced statements were left
+						markCommitted(new ArrayList<Long>());
 						break;
 					}
-					statement.buildStatement(db)
-					.execute();
-					processed.add(statement);
+					int size = batch.size();
+					// Only what was written before a lost connection leaves pending, the rest is retried
+					List<QueuedStatement> written = batch.subList(0, write(db, batch));
+					List<Long> seqs = new ArrayList<Long>(written.size());
+					for (QueuedStatement statement : written) {
+						statement.getSequences(seqs);
+						coalescer.written(statement);
+					}
+					processed += written.size();
+					metrics.recordWritten(written.size());
+					boolean lost = written.size() < size;
+					written.clear();
+					markCommitted(seqs);
+					if (lost) {
+						market.log.severe((pending.size() - coalescedPending) + " statements will be retried once the database is back");
+						break;
+					}
+					if (Thread.currentThread().isInterrupted()) {
+						// Shutdown timed out, the rest stays in the journal
+						break;
+					}
+					takeQueued();
 				}
 				if (debug) {
-					market.log.info("Queue done. Processed " + processed.size() + " items");
+					market.log.info("Queue done. Processed " + processed + " items");
 				}
-				queue.removeAll(processed);
-				isProcessing.set(false);
+				metrics.recordFlush(System.nanoTime() - startedNanos);
 			}
 		} catch(Exception e) {
-			isProcessing.set(false);
 			market.log.severe("Error while processing DB queue:");
 			e.printStackTrace();
 		}
+		updateOldestPending();
 		if (debug) {
 			market.log.info("#### DB Queue finished (took " + ((System.currentTimeMillis() - started) / 1000) + " sec) ####");
 		}
 	}
 	
-	public synchronized void addStatement(QueuedStatement statement) {
+	/*
+	 * Moves everything on the queue to the pending list, journaling it on the way, and coalesces
+	 * each statement moved with the pending ones it cancels or overwrites. Deferrable statements are
+	 * held back while the backlog is over backlogDefer. Must hold flushLock
+	 */
+	private void takeQueued() {
+		List<QueuedStatement> taken = new ArrayList<QueuedStatement>();
+		QueuedStatement statement;
+		while ((statement = queue.poll()) != null) {
+			queueSize.decrementAndGet();
+			taken.add(statement);
+		}
+		if (!taken.isEmpty()) {
+			if (journal != null) {
+				try {
+					journal.append(taken);
+				} catch(IOException e) {
+					market.log.severe("Couldn't write to the DB queue journal, queued statements won't survive a crash:");
+					e.printStackTrace();
+				}
+			}
+			if (getQueueSize() + taken.size() >= backlogDefer) {
+				int held = 0;
+				Iterator<QueuedStatement> it = taken.iterator();
+				while (it.hasNext()) {
+					QueuedStatement queued = it.next();
+					if (queued.isDeferrable()) {
+						deferred.add(queued);
+						it.remove();
+						held++;
+					}
+				}
+				metrics.recordDeferred(held);
+			}
+		}
+		if (!deferred.isEmpty() && pending.size() - coalescedPending < backlogWarn) {
+			taken.addAll(deferred);
+			deferred.clear();
+		} else if (taken.isEmpty()) {
+			return;
+		}
+		List<QueuedStatement> cancelled = addPending(taken);
+		checkBacklog();
+		updateOldestPending();
+		if (cancelled.isEmpty()) {
+			return;
+		}
+		for (QueuedStatement cancel : cancelled) {
+			cancel.getSequences(resolved);
+			cancel.executed();
+		}
+		if (pending.isEmpty()) {
+			markCommitted(new ArrayList<Long>());
+		}
+	}
+	
+	/*
+	 * Appends statements to pending, coalescing each one as it goes in. Pending is compacted once
+	 * most of it has been coalesced away. Must hold flushLock
+	 * @return Statements that cancelled out with nothing left to run for them
+	 */
+	private List<QueuedStatement> addPending(List<QueuedStatement> statements) {
+		List<QueuedStatement> cancelled = new ArrayList<QueuedStatement>();
+		int dropped = 0;
+		for (QueuedStatement statement : statements) {
+			pending.add(statement);
+			dropped += coalescer.add(statement, cancelled);
+		}
+		coalescedPending += dropped;
+		metrics.recordCoalesced(dropped);
+		if (coalescedPending > pending.size() / 2) {
+			compactPending();
+		}
+		return cancelled;
+	}
+	
+	private void compactPending() {
+		List<QueuedStatement> kept = new ArrayList<QueuedStatement>(pending.size() - coalescedPending);
+		for (QueuedStatement statement : pending) {
+			if (!statement.isCoalesced()) {
+				kept.add(statement);
+			}
+		}
+		pending = kept;
+		coalescedPending = 0;
+		if (pending.isEmpty()) {
+			coalescer.clear();
+		}
+	}
+	
+	/*
+	 * Drops coalesced statements from the front of pending until it starts with a full batch
+	 * of statements to write, or runs out. Must hold flushLock
+	 * @return The batch, a view of the front of pending
+	 */
+	private List<QueuedStatement> nextBatch() {
+		List<QueuedStatement> batch = new ArrayList<QueuedStatement>();
+		int end = 0;
+		while (end < pending.size() && batch.size() < maxBatchSize) {
+			QueuedStatement statement = pending.get(end++);
+			if (!statement.isCoalesced()) {
+				batch.add(statement);
+			}
+		}
+		if (batch.size() < end) {
+			coalescedPending -= end - batch.size();
+			pending.subList(0, end).clear();
+			pending.addAll(0, batch);
+		}
+		if (pending.isEmpty()) {
+			coalescer.clear();
+		}
+		return pending.subList(0, batch.size());
+	}
+	
+	private void checkBacklog() {
+		int size = getQueueSize();
+		if (size < backlogWarn) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastBacklogWarning > 60000) {
+			lastBacklogWarning = now;
+			market.log.warning("DB queue is backed up: " + size + " statements waiting, oldest is "
+					+ (getOldestPendingAge() / 1000) + " sec old" + (size >= backlogDefer ? ", deferring history writes" : ""));
+		}
+	}
+	
+	private void updateOldestPending() {
+		// Both lists are roughly in creation order, their heads are close enough for a metric
+		long oldest = pending.isEmpty() ? 0 : pending.get(0).getQueued();
+		if (!deferred.isEmpty() && (oldest == 0 || deferred.get(0).getQueued() < oldest)) {
+			oldest = deferred.get(0).getQueued();
+		}
+		oldestPending = oldest;
+	}
+	
+	private void markCommitted(List<Long> seqs) {
+		seqs.addAll(resolved);
+		resolved.clear();
+		if (pending.isEmpty()) {
+			coalescer.clear();
+		}
+		if (journal == null) {
+			return;
+		}
+		try {
+			if (pending.isEmpty() && deferred.isEmpty()) {
+				journal.truncate();
+				pruneBelow = journal.getNextSeq();
+				journalIntact = true;
+			} else {
+				journal.commit(seqs);
+				if (journalIntact) {
+					// Everything before the oldest statement still waiting has a commit record in the journal
+					pruneBelow = Math.max(pruneBelow, getLowestPendingSequence());
+				}
+			}
+		} catch(IOException e) {
+			journalIntact = false;
+			market.log.severe("Couldn't update the DB queue journal:");
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Statements a pending one coalesced away are covered by it, so only the ones left to write
+	 * are checked. Must hold flushLock
+	 */
+	private long getLowestPendingSequence() {
+		long lowest = journal.getNextSeq();
+		for (QueuedStatement statement : pending) {
+			if (!statement.isCoalesced()) {
+				lowest = Math.min(lowest, statement.getLowestSequence());
+			}
+		}
+		for (QueuedStatement statement : deferred) {
+			lowest = Math.min(lowest, statement.getLowestSequence());
+		}
+		return lowest;
+	}
+	
+	/**
+	 * Opens the journal and writes any statements left in it by a crash. Must be called before
+	 * anything is queued, and before the storage is loaded so it sees the replayed changes
+	 * @param file Journal file
+	 * @param db Connection to replay on
+	 */
+	public void openJournal(File file, Database db) {
+		flushLock.lock();
+		try {
+			journal = new StatementJournal(file);
+			List<QueuedStatement> lost = journal.readUncommitted();
+			// A crash between a transaction and its commit record leaves the statements in the journal,
+			// but the transaction recorded their sequence numbers too
+			Set<Long> committed = new HashSet<Long>();
+			long lastCommitted = 0;
+			MarketResult res = db.createStatement("SELECT seq FROM queue_commits WHERE server=?").setString(market.getServerId()).query();
+			if (res == null) {
+				throw new SQLException("Couldn't read committed journal positions");
+			}
+			while (res.next()) {
+				long seq = res.getLong(1);
+				committed.add(seq);
+				lastCommitted = Math.max(lastCommitted, seq);
+			}
+			res.close();
+			Iterator<QueuedStatement> it = lost.iterator();
+			while (it.hasNext()) {
+				if (committed.contains(it.next().getSequence())) {
+					it.remove();
+				}
+			}
+			// Positions still recorded in the database must never be handed out again
+			journal.ensureNextSeq(lastCommitted + 1);
+			// On a reload anything left in the journal is still pending here and will be written normally
+			if (!lost.isEmpty() && pending.isEmpty()) {
+				market.log.info("Replaying " + lost.size() + " statements from the DB queue journal");
+				int written = write(db, lost);
+				// Anything the connection dropped on is written with the rest of the queue
+				for (QueuedStatement cancel : addPending(lost.subList(written, lost.size()))) {
+					cancel.getSequences(resolved);
+					cancel.executed();
+				}
+			}
+			if (coalescedPending > 0) {
+				// Only what's still needed is journaled again
+				compactPending();
+			}
+			journal.truncate();
+			pruneBelow = journal.getNextSeq();
+			journal.append(pending);
+			journal.append(deferred);
+		} catch(Exception e) {
+			market.log.severe("Error while replaying the DB queue journal:");
+			e.printStackTrace();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+	
+	/*
+	 * Writes statements in a single transaction. If that fails the statements are split in half and each
+	 * half is retried, until the statement that fails on its own is found and dropped. Halves are committed
+	 * on their own, so if the connection is lost part way the statements before it are already written
+	 * @return How many leading statements were written or dropped, fewer than given if the connection was lost
+	 */
+	private int write(Database db, List<QueuedStatement> statements) {
+		try {
+			writeTransaction(db, statements);
+			return statements.size();
+		} catch(SQLException e) {
+			db.invalidate();
+			if (!db.isConnected()) {
+				metrics.recordConnectionFailure();
+				market.log.severe("Lost the database connection while processing DB queue (" + e.getMessage() + ")");
+				return 0;
+			}
+			if (statements.size() == 1) {
+				metrics.recordDropped();
+				market.log.severe("Dropping statement that can't be written: " + statements.get(0).getQuery());
+				e.printStackTrace();
+				return 1;
+			}
+			int half = statements.size() / 2;
+			int written = write(db, statements.subList(0, half));
+			if (written < half) {
+				return written;
+			}
+			return written + write(db, statements.subList(half, statements.size()));
+		}
+	}
+	
+	/*
+	 * Consecutive statements with the same query are sent as one JDBC batch
+	 */
+	private void writeTransaction(Database db, List<QueuedStatement> statements) throws SQLException {
+		PreparedStatement prepared = null;
+		String query = null;
+		db.setAutoCommit(false);
+		try {
+			for (QueuedStatement statement : statements) {
+				if (!statement.getQuery().equals(query)) {
+					if (prepared != null) {
+						prepared.executeBatch();
+					}
+					query = statement.getQuery();
+					prepared = db.prepareStatement(query);
+				}
+				statement.bind(prepared);
+				prepared.addBatch();
+			}
+			if (prepared != null) {
+				prepared.executeBatch();
+			}
+			boolean pruned = recordCommits(db, statements);
+			db.commit();
+			if (pruned) {
+				pruneBelow = 0;
+			}
+		} catch(SQLException e) {
+			db.rollback();
+			throw e;
+		} finally {
+			if (prepared != null) {
+				// The statement is cached by the connection, make sure a failed batch doesn't linger on it
+				try {
+					prepared.clearBatch();
+				} catch(SQLException ignored) { }
+			}
+			try {
+				db.setAutoCommit(true);
+			} catch(SQLException ignored) { }
+		}
+		for (QueuedStatement statement : statements) {
+			statement.executed();
+		}
+	}
+	
+	/*
+	 * Records the journal positions of the statements in the transaction that writes them, so replaying
+	 * the journal skips them even if the journal's own commit record never made it to disk
+	 * @return True if rows below pruneBelow were deleted as well
+	 */
+	private boolean recordCommits(Database db, List<QueuedStatement> statements) throws SQLException {
+		if (journal == null) {
+			return false;
+		}
+		List<Long> seqs = new ArrayList<Long>();
+		for (QueuedStatement statement : statements) {
+			statement.getSequences(seqs);
+		}
+		String server = market.getServerId();
+		if (!seqs.isEmpty()) {
+			PreparedStatement insert = db.prepareStatement("INSERT INTO queue_commits (server, seq) VALUES (?, ?)");
+			try {
+				for (long seq : seqs) {
+					insert.setString(1, server);
+					insert.setLong(2, seq);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			} finally {
+				insert.clearBatch();
+			}
+		}
+		if (pruneBelow > 0) {
+			PreparedStatement prune = db.prepareStatement("DELETE FROM queue_commits WHERE server=? AND seq<?");
+			prune.setString(1, server);
+			prune.setLong(2, pruneBelow);
+			prune.executeUpdate();
+			return true;
+		}
+		return false;
+	}
+	
+	public void addStatement(QueuedStatement statement) {
 		queue.add(statement);
+		int size = queueSize.incrementAndGet();
+		// The writer only needs waking when the queue stops being empty or gets big enough to flush
+		if (size == 1) {
+			execute(journalTask);
+			scheduleFlush(flushInterval);
+		} else if (size == flushSize) {
+			execute(flushTask);
+		}
+	}
+	
+	public int getQueueSize() {
+		return queueSize.get() + pending.size() - coalescedPending + deferred.size();
+	}
+	
+	/**
+	 * @return Age of the oldest statement that hasn't been written yet in ms, 0 if nothing is waiting
+	 */
+	public long getOldestPendingAge() {
+		long oldest = oldestPending;
+		if (oldest == 0) {
+			QueuedStatement head = queue.peek();
+			if (head == null) {
+				return 0;
+			}
+			oldest = head.getQueued();
+		}
+		return Math.max(0, System.currentTimeMillis() - oldest);
 	}
 	
-	public synchronized boolean isProcessing() {
-		return isProcessing.get();
+	public int getDeferredSize() {
+		return deferred.size();
 	}
 	
-	public synchronized int getTaskId() {
-		return taskId;
+	public QueueMetrics getMetrics() {
+		return metrics;
 	}
 	
 	public synchronized Database getDb() {
 		return db;
 	}
 	
+	/**
+	 * Stops the DB queue if it's still running and closes its connection and journal
+	 */
 	public synchronized void close() {
-		db.close();
+		shutdown(market.getShutdownTimeout());
+		if (db != null) {
+			db.close();
+			// A reload may point at a different database, startTask() opens a new connection
+			db = null;
+		}
+		if (journal != null) {
+			journal.close();
+		}
 	}
 }
@@ -0,0 +1,186 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Reads and writes the market_changes table, which every server sharing a
+ * database appends its listing and mail changes to. Each server polls for rows
+ * past the last ID it has seen, plus any IDs it skipped, and applies the ones
+ * written by other servers.
+ */
+public class ChangeLog {
+	
+	public static final String LISTING_ADDED = "listing_added";
+	public static final String LISTING_REMOVED = "listing_removed";
+	public static final String MAIL_ADDED = "mail_added";
+	public static final String MAIL_REMOVED = "mail_removed";
+	public static final String MAIL_PICKUP_CLEARED = "mail_pickup_cleared";
+	
+	/*
+	 * IDs are handed out when a row is inserted but rows become visible when their transaction
+	 * commits, so a poll can see a row before a lower ID shows up. Skipped IDs are looked for
+	 * again for this long in ms before they're treated as rolled back.
+	 */
+	private static final long GAP_TIMEOUT = 30000;
+	private static final int MAX_GAPS = 1000;
+	private static final int POLL_LIMIT = 1000;
+	private static final int GAP_CHUNK_SIZE = 500;
+	
+	private String server;
+	private long lastSeen;
+	// Skipped IDs and when they were first skipped
+	private TreeMap<Long, Long> gaps;
+	
+	public ChangeLog(String server) {
+		this.server = server;
+		gaps = new TreeMap<Long, Long>();
+	}
+	
+	public String getServer() {
+		return server;
+	}
+	
+	/**
+	 * Starts polling after the newest change. Should be called before the storage is loaded
+	 * so nothing written in between is missed
+	 * @param db Connection to read from
+	 */
+	public synchronized void start(Database db) throws SQLException {
+		MarketResult res = db.createStatement("SELECT MAX(id) FROM market_changes").query();
+		if (res == null) {
+			throw new SQLException("Couldn't read market_changes");
+		}
+		lastSeen = res.next() ? res.getLong(1) : 0;
+		res.close();
+		gaps.clear();
+	}
+	
+	/**
+	 * @param type One of the change types in this class
+	 * @param target ID of the listing or mail that changed
+	 * @return Statement recording the change, to be queued along with the change itself
+	 */
+	public QueuedStatement record(String type, int target) {
+		return new QueuedStatement("INSERT INTO market_changes (server, time, type, target) VALUES (?, ?, ?, ?)")
+		.setValue(server)
+		.setValue(System.currentTimeMillis())
+		.setValue(type)
+		.setValue(target);
+	}
+	
+	/**
+	 * @param before Time in ms changes older than which are deleted
+	 */
+	public static QueuedStatement prune(long before) {
+		return new QueuedStatement("DELETE FROM market_changes WHERE time<?")
+		.setValue(before);
+	}
+	
+	/**
+	 * Reads changes made by other servers since the last poll
+	 * @param db Connection to read from
+	 * @return New changes in the order they were made
+	 */
+	public synchronized List<Record> poll(Database db) throws SQLException {
+		long now = System.currentTimeMillis();
+		Iterator<Long> expired = gaps.values().iterator();
+		while (expired.hasNext()) {
+			if (now - expired.next() > GAP_TIMEOUT) {
+				expired.remove();
+			}
+		}
+		List<Record> changes = new ArrayList<Record>();
+		// Every gap is below lastSeen, so these come before anything new
+		pollGaps(db, changes);
+		MarketResult res = db.createStatement("SELECT id, server, type, target FROM market_changes WHERE id>? ORDER BY id ASC LIMIT " + POLL_LIMIT)
+				.setLong(lastSeen)
+				.query();
+		if (res == null) {
+			throw new SQLException("Couldn't read market_changes");
+		}
+		try {
+			while (res.next()) {
+				long id = res.getLong(1);
+				for (long missing = lastSeen + 1; missing < id && gaps.size() < MAX_GAPS; missing++) {
+					gaps.put(missing, now);
+				}
+				lastSeen = id;
+				addRecord(res, changes);
+			}
+		} finally {
+			res.close();
+		}
+		return changes;
+	}
+	
+	/*
+	 * Looks for skipped IDs by ID, so a gap never holds back reading past lastSeen
+	 */
+	private void pollGaps(Database db, List<Record> changes) throws SQLException {
+		Iterator<Long> it = new ArrayList<Long>(gaps.keySet()).iterator();
+		while (it.hasNext()) {
+			StringBuilder query = new StringBuilder();
+			query.append("SELECT id, server, type, target FROM market_changes WHERE id IN (");
+			for (int i = 0; i < GAP_CHUNK_SIZE && it.hasNext(); i++) {
+				if (i > 0) {
+					query.append(", ");
+				}
+				query.append(it.next());
+			}
+			query.append(") ORDER BY id ASC");
+			MarketResult res = db.createUncachedStatement(query.toString()).query();
+			if (res == null) {
+				throw new SQLException("Couldn't read market_changes");
+			}
+			try {
+				while (res.next()) {
+					gaps.remove(res.getLong(1));
+					addRecord(res, changes);
+				}
+			} finally {
+				res.close();
+			}
+		}
+	}
+	
+	private void addRecord(MarketResult res, List<Record> changes) {
+		if (!server.equals(res.getString(2))) {
+			changes.add(new Record(res.getLong(1), res.getString(2), res.getString(3), res.getInt(4)));
+		}
+	}
+	
+	public static class Record {
+		
+		private long id;
+		private String server;
+		private String type;
+		private int target;
+		
+		public Record(long id, String server, String type, int target) {
+			this.id = id;
+			this.server = server;
+			this.type = type;
+			this.target = target;
+		}
+		
+		public long getId() {
+			return id;
+		}
+		
+		public String getServer() {
+			return server;
+		}
+		
+		public String getType() {
+			return type;
+		}
+		
+		public int getTarget() {
+			return target;
+		}
+	}
+}
@@ -6,9 +6,19 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public class Database {
+	
+	private static final int STATEMENT_CACHE_SIZE = 64;
+	// A connection that checked out fine is trusted for this long in ms
+	private static final long VALIDATION_WINDOW = 5000;
+	private static final int VALIDATION_TIMEOUT = 2;
+	// Reconnect attempts back off exponentially between these bounds in ms
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 60000;
 
 	private Logger log;
 	private Connection con;
@@ -18,7 +28,13 @@ public class Database {
 	private String db;
 	private String path;
 	private int port;
-	private PreparedStatement lastStatement;
+	private StatementCache statements;
+	private long statementHits;
+	private long statementMisses;
+	private ResultSet lastResult;
+	private volatile long validUntil;
+	private int connectFailures;
+	private long retryAt;
 	
 	/**
 	 * SQLite constructor
@@ -56,39 +72,114 @@ public class Database {
 		this.port = port;
 	}
 	
+	/**
+	 * Checks the connection, at most once every VALIDATION_WINDOW ms
+	 * @return True if the connection is usable
+	 */
 	public boolean isConnected() {
+		if (con == null) {
+			return false;
+		}
+		if (System.currentTimeMillis() < validUntil) {
+			return true;
+		}
+		boolean valid;
 		try {
-			Statement s = con.createStatement();
-            ResultSet r = s.executeQuery("SELECT 1");
-            r.close();
-            return true;
+			valid = con.isValid(VALIDATION_TIMEOUT);
+		} catch(AbstractMethodError e) {
+			// Driver predates JDBC 4
+			valid = ping();
+		} catch(SQLException e) {
+			valid = ping();
+		}
+		validUntil = valid ? System.currentTimeMillis() + VALIDATION_WINDOW : 0;
+		return valid;
+	}
+	
+	private boolean ping() {
+		Statement s = null;
+		try {
+			s = con.createStatement();
+			s.executeQuery("SELECT 1").close();
+			return true;
 		} catch(Exception e) {
 			return false;
+		} finally {
+			if (s != null) {
+				try {
+					s.close();
+				} catch(SQLException ignored) { }
+			}
 		}
 	}
 	
+	/**
+	 * Makes the next isConnected() check the connection again, used after a statement fails
+	 */
+	public void invalidate() {
+		validUntil = 0;
+	}
+	
+	/**
+	 * @return Time left in ms before connect() will try to reconnect again after failing
+	 */
+	public synchronized long getRetryDelay() {
+		return Math.max(0, retryAt - System.currentTimeMillis());
+	}
+	
+	/**
+	 * Connects, or reconnects if the connection has been lost. After a failed attempt further
+	 * attempts are skipped until a backoff that doubles with every failure has passed
+	 * @return True if connected
+	 */
 	public synchronized boolean connect() {
+		if (isConnected()) {
+			return true;
+		}
+		if (System.currentTimeMillis() < retryAt) {
+			return false;
+		}
 		try {
-			if (!isConnected()) {
-				if (path != null) {
-					Class.forName("org.sqlite.JDBC");
-					con = DriverManager.getConnection("jdbc:sqlite://" + path + "/" + db + ".db");
-				} else {
-					Class.forName("com.mysql.jdbc.Driver");
-					con = DriverManager.getConnection("jdbc:mysql://" + server + ":" + port + "?useUnicode=true&characterEncoding=utf8", user, pass);
-					con.createStatement().executeUpdate("CREATE DATABASE IF NOT EXISTS " + db);
-					con.setCatalog(db);
-				}
+			// Statements prepared on the old connection can't be reused
+			clearStatements();
+			if (con != null) {
+				try {
+					con.close();
+				} catch(SQLException ignored) { }
+			}
+			if (path != null) {
+				Class.forName("org.sqlite.JDBC");
+				con = DriverManager.getConnection("jdbc:sqlite://" + path + "/" + db + ".db");
+			} else {
+				Class.forName("com.mysql.jdbc.Driver");
+				con = DriverManager.getConnection("jdbc:mysql://" + server + ":" + port + "?useUnicode=true&characterEncoding=utf8", user, pass);
+				con.createStatement().executeUpdate("CREATE DATABASE IF NOT EXISTS " + db);
+				con.setCatalog(db);
+			}
+			if (connectFailures > 0) {
+				log.info("Reconnected to the database after " + connectFailures + " failed attempts");
 			}
+			connectFailures = 0;
+			retryAt = 0;
+			validUntil = System.currentTimeMillis() + VALIDATION_WINDOW;
 			return true;
 		} catch (Exception e) {
-			e.printStackTrace();
+			con = null;
+			long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(connectFailures, 16));
+			retryAt = System.currentTimeMillis() + backoff;
+			if (connectFailures == 0) {
+				e.printStackTrace();
+			}
+			connectFailures++;
+			log.severe("Couldn't connect to the database (" + e.getMessage() + "), retrying in " + (backoff / 1000) + " sec");
 			return false;
 		}
 	}
 	
-	public boolean close() {
+	public synchronized boolean close() {
+		validUntil = 0;
 		try {
+			clearStatements();
 			con.close();
 			return true;
 		} catch(Exception e) {
@@ -96,23 +187,193 @@ public class Database {
 		}
 	}
 	
-	public MarketStatement createStatement(String query) throws SQLException {
+	public boolean hasColumn(String table, String column) {
+		try {
+			ResultSet res = con.getMetaData().getColumns(null, null, table, column);
+			boolean found = res.next();
+			res.close();
+			return found;
+		} catch(SQLException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	public boolean hasTable(String table) {
 		try {
-			if (lastStatement != null) {
-				lastStatement.close();
+			ResultSet res = con.getMetaData().getTables(null, null, table, null);
+			boolean found = res.next();
+			res.close();
+			return found;
+		} catch(SQLException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	public boolean hasIndex(String table, String index) {
+		try {
+			ResultSet res = con.getMetaData().getIndexInfo(null, null, table, false, false);
+			boolean found = false;
+			while (res.next()) {
+				if (index.equalsIgnoreCase(res.getString("INDEX_NAME"))) {
+					found = true;
+					break;
+				}
 			}
-		} catch(Exception ignored) { }
-		lastStatement = con.prepareStatement(query);
-		return new MarketStatement(log, lastStatement);
+			res.close();
+			return found;
+		} catch(SQLException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	public void setReadOnly(boolean readOnly) throws SQLException {
+		con.setReadOnly(readOnly);
 	}
 	
-	public MarketStatement createStatement(String query, String toReturn) throws SQLException {
+	/**
+	 * Switches an SQLite database to write-ahead logging so readers on other connections aren't blocked by writes.
+	 * The setting is stored in the database file
+	 */
+	public void enableWal() {
 		try {
-			if (lastStatement != null) {
-				lastStatement.close();
+			Statement s = con.createStatement();
+			s.execute("PRAGMA journal_mode=WAL");
+			s.close();
+		} catch(SQLException e) {
+			log.info("Couldn't enable WAL mode:");
+			e.printStackTrace();
+		}
+	}
+	
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		con.setAutoCommit(autoCommit);
+	}
+	
+	public void commit() throws SQLException {
+		con.commit();
+	}
+	
+	public void rollback() {
+		try {
+			con.rollback();
+		} catch(SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Gets a prepared statement for a query, reusing the one prepared earlier on this connection if there is one.
+	 * The statement belongs to the connection and must not be closed by the caller
+	 */
+	public synchronized PreparedStatement prepareStatement(String query) throws SQLException {
+		return getStatement(query, null);
+	}
+	
+	public synchronized MarketStatement createStatement(String query) throws SQLException {
+		return new MarketStatement(log, getStatement(query, null), this);
+	}
+	
+	public synchronized MarketStatement createStatement(String query, String toReturn) throws SQLException {
+		return new MarketStatement(log, getStatement(query, toReturn), this);
+	}
+	
+	/**
+	 * Prepares a statement that's closed once it's run, or once its result is closed, instead of being cached.
+	 * For queries built at runtime, like IN lists, that would never be reused and only push out ones that are
+	 */
+	public synchronized MarketStatement createUncachedStatement(String query) throws SQLException {
+		closeLastResult();
+		return new MarketStatement(log, con.prepareStatement(query));
+	}
+	
+	private PreparedStatement getStatement(String query, String toReturn) throws SQLException {
+		// Results of the previous statement are no longer valid, as they weren't before statements were cached
+		closeLastResult();
+		if (statements == null) {
+			statements = new StatementCache(STATEMENT_CACHE_SIZE);
+		}
+		String key = toReturn == null ? query : query + "\u0000" + toReturn;
+		PreparedStatement statement = statements.get(key);
+		if (statement != null) {
+			statementHits++;
+			statement.clearParameters();
+			return statement;
+		}
+		statementMisses++;
+		statement = toReturn == null ? con.prepareStatement(query) : con.prepareStatement(query, new String[]{toReturn});
+		statements.put(key, statement);
+		return statement;
+	}
+	
+	synchronized void setLastResult(ResultSet result) {
+		closeLastResult();
+		lastResult = result;
+	}
+	
+	private void closeLastResult() {
+		if (lastResult != null) {
+			try {
+				lastResult.close();
+			} catch(SQLException ignored) { }
+			lastResult = null;
+		}
+	}
+	
+	private void clearStatements() {
+		closeLastResult();
+		if (statements != null) {
+			for (PreparedStatement statement : statements.values()) {
+				closeQuietly(statement);
+			}
+			statements.clear();
+		}
+	}
+	
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch(SQLException ignored) { }
+	}
+	
+	public synchronized long getStatementCacheHits() {
+		return statementHits;
+	}
+	
+	public synchronized long getStatementCacheMisses() {
+		return statementMisses;
+	}
+	
+	/**
+	 * @return Fraction of statements that were reused, between 0 and 1
+	 */
+	public synchronized double getStatementCacheHitRate() {
+		long total = statementHits + statementMisses;
+		return total == 0 ? 0 : (double) statementHits / total;
+	}
+	
+	/*
+	 * Least recently used statements are closed once there are more than maxSize
+	 */
+	private static class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+		
+		private static final long serialVersionUID = 1L;
+		private int maxSize;
+		
+		StatementCache(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() > maxSize) {
+				closeQuietly(eldest.getValue());
+				return true;
 			}
-		} catch(Exception ignored) { }
-		lastStatement = con.prepareStatement(query, new String[]{toReturn});
-		return new MarketStatement(log, lastStatement);
+			return false;
+		}
 	}
 }
@@ -0,0 +1,284 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.survivorserver.GlobalMarket.Market;
+
+/**
+ * Hands out IDs from blocks reserved in the sequences table (hi/lo). A block is
+ * claimed with a compare-and-set UPDATE, so any number of servers sharing a
+ * database can allocate without colliding, and only one round trip is made per
+ * block. The first block of every sequence is claimed while storage loads, and
+ * the next one is always claimed in the background before the current one runs
+ * out, so handing out an ID on the main thread never waits on the database.
+ */
+public class IdAllocator {
+	
+	public static final String LISTINGS = "listings";
+	public static final String MAIL = "mail";
+	public static final String ITEMS = "items";
+	public static final String QUEUE = "queue";
+	private static final String[] SEQUENCES = new String[] {LISTINGS, MAIL, ITEMS, QUEUE};
+	
+	// Attempts at claiming a block before giving up
+	private static final int MAX_ATTEMPTS = 20;
+	private static final long RETRY_DELAY = 50;
+	// How long next() waits for a block off the main thread
+	private static final long WAIT_TIMEOUT = 5000;
+	
+	private Market market;
+	private int blockSize;
+	private Database db;
+	private Map<String, Block> blocks;
+	private ExecutorService prefetcher;
+	
+	public IdAllocator(Market market, int blockSize) {
+		this.market = market;
+		this.blockSize = Math.max(1, blockSize);
+		blocks = new HashMap<String, Block>();
+		prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "GlobalMarket ID allocator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Claims the first block of every sequence with the connection storage is loading from,
+	 * then starts claiming the next ones in the background
+	 * @param loading Connection used to load storage
+	 */
+	public void load(Database loading) {
+		for (String sequence : SEQUENCES) {
+			Block block = getBlock(sequence);
+			try {
+				block.setCurrent(claim(loading, sequence));
+			} catch(SQLException e) {
+				market.log.severe("Couldn't reserve " + sequence + " IDs, they'll be reserved once the database is reachable:");
+				e.printStackTrace();
+			}
+			block.topUp();
+		}
+	}
+	
+	/**
+	 * Never waits on the database on the main thread. Other threads wait a few seconds for
+	 * a block if none is reserved, which only happens when the database has been unreachable
+	 * @param sequence Name of the sequence, one of the constants in this class
+	 * @return An ID no other call on any server will return
+	 * @throws IllegalStateException If no ID is reserved and none could be in time
+	 */
+	public int next(String sequence) {
+		return getBlock(sequence).next(market.getServer().isPrimaryThread() ? 0 : WAIT_TIMEOUT);
+	}
+	
+	/**
+	 * Checked before taking anything from a player for an action that needs new IDs
+	 * @param count Most IDs the action takes from any one sequence
+	 * @param sequences Sequences the action takes IDs from
+	 * @return True if every sequence has that many IDs reserved
+	 */
+	public boolean isAvailable(int count, String... sequences) {
+		return await(count, 0, sequences);
+	}
+	
+	/**
+	 * Waits for IDs to be reserved, for work that's allowed to block such as importing on startup
+	 * @param count Most IDs the work takes from any one sequence before checking again
+	 * @param timeout Milliseconds to wait for each sequence
+	 * @param sequences Sequences the work takes IDs from
+	 * @return True if every sequence has that many IDs reserved
+	 */
+	public boolean await(int count, long timeout, String... sequences) {
+		for (String sequence : sequences) {
+			if (!getBlock(sequence).await(count, timeout)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private Block getBlock(String sequence) {
+		synchronized(blocks) {
+			Block block = blocks.get(sequence);
+			if (block == null) {
+				block = new Block(sequence);
+				blocks.put(sequence, block);
+			}
+			return block;
+		}
+	}
+	
+	/**
+	 * Forgets every reserved block, the IDs left in them are skipped. Used when the database may have changed
+	 */
+	public void reset() {
+		synchronized(blocks) {
+			blocks.clear();
+		}
+		synchronized(this) {
+			if (db != null) {
+				db.close();
+				db = null;
+			}
+		}
+	}
+	
+	public void close() {
+		prefetcher.shutdownNow();
+		reset();
+	}
+	
+	/*
+	 * Claims the next block of a sequence on the allocator's own connection
+	 */
+	private synchronized long claim(String sequence) throws SQLException {
+		if (db == null) {
+			db = market.getConfigHandler().createConnection();
+		}
+		if (!db.isConnected() && !db.connect()) {
+			throw new SQLException("Couldn't connect to the database");
+		}
+		return claim(db, sequence);
+	}
+	
+	private long claim(Database db, String sequence) throws SQLException {
+		SQLException failure = null;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			try {
+				MarketResult res = db.createStatement("SELECT next_value FROM sequences WHERE name=?").setString(sequence).query();
+				if (res == null) {
+					throw new SQLException("Couldn't read sequence " + sequence);
+				}
+				long current = res.next() ? res.getLong(1) : -1;
+				res.close();
+				if (current < 0) {
+					throw new SQLException("Sequence " + sequence + " doesn't exist");
+				}
+				int updated = db.createStatement("UPDATE sequences SET next_value=? WHERE name=? AND next_value=?")
+						.setLong(current + blockSize)
+						.setString(sequence)
+						.setLong(current)
+						.executeUpdate();
+				if (updated == 1) {
+					return current;
+				}
+			} catch(SQLException e) {
+				// SQLite reports the database as busy while the DB queue is writing
+				failure = e;
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (!db.isConnected()) {
+					db.connect();
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		throw new SQLException("Gave up claiming a block of " + sequence + " IDs after " + MAX_ATTEMPTS + " attempts");
+	}
+	
+	private class Block {
+		
+		String sequence;
+		long next;
+		long limit;
+		// Start of the block claimed ahead of time, -1 if there isn't one
+		long prefetched = -1;
+		boolean prefetching;
+		
+		Block(String sequence) {
+			this.sequence = sequence;
+		}
+		
+		synchronized void setCurrent(long start) {
+			next = start;
+			limit = start + blockSize;
+		}
+		
+		/*
+		 * Requests a block if fewer than count IDs are reserved, then waits for it up to the timeout
+		 */
+		synchronized boolean await(int count, long timeout) {
+			// The current block's leftovers and one prefetched block are all that's ever reserved
+			count = Math.min(count, blockSize);
+			long deadline = System.currentTimeMillis() + timeout;
+			while (limit - next + (prefetched >= 0 ? blockSize : 0) < count) {
+				topUp();
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		synchronized int next(long timeout) {
+			if (!await(1, timeout)) {
+				throw new IllegalStateException("No " + sequence + " IDs are reserved, the database may be unreachable");
+			}
+			if (next >= limit) {
+				setCurrent(prefetched);
+				prefetched = -1;
+			}
+			int id = (int) next++;
+			if (limit - next <= blockSize / 2) {
+				topUp();
+			}
+			return id;
+		}
+		
+		/*
+		 * Claims the next block in the background unless it's already been claimed or is being claimed
+		 */
+		synchronized void topUp() {
+			if (prefetched >= 0 || prefetching) {
+				return;
+			}
+			prefetching = true;
+			try {
+				prefetcher.execute(new Runnable() {
+					public void run() {
+						prefetch();
+					}
+				});
+			} catch(Exception e) {
+				// Shutting down
+				prefetching = false;
+			}
+		}
+		
+		void prefetch() {
+			long start = -1;
+			try {
+				start = claim(sequence);
+			} catch(SQLException e) {
+				market.log.severe("Couldn't reserve " + sequence + " IDs ahead of time:");
+				e.printStackTrace();
+			}
+			synchronized(this) {
+				prefetched = start;
+				prefetching = false;
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Compact binary encoding of ItemStacks. The item's Bukkit serialization
+ * (the same map the YAML representation is built from) is written as a
+ * tree of length-prefixed, type-tagged values, so no text has to be
+ * generated or parsed.
+ */
+public class ItemCodec {
+	
+	/**
+	 * Value of items.format for rows holding YAML in the item column
+	 */
+	public static final int FORMAT_YAML = 0;
+	/**
+	 * Value of items.format for rows holding this encoding in the data column
+	 */
+	public static final int FORMAT_BINARY = 1;
+	
+	private static final int VERSION = 1;
+	
+	private static final int TAG_NULL = 0;
+	private static final int TAG_STRING = 1;
+	private static final int TAG_INT = 2;
+	private static final int TAG_LONG = 3;
+	private static final int TAG_SHORT = 4;
+	private static final int TAG_BYTE = 5;
+	private static final int TAG_DOUBLE = 6;
+	private static final int TAG_FLOAT = 7;
+	private static final int TAG_BOOLEAN = 8;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_MAP = 10;
+	private static final int TAG_SERIALIZABLE = 11;
+	
+	public static byte[] encode(ItemStack item) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(VERSION);
+		writeMap(out, item.serialize());
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	public static ItemStack decode(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unknown item encoding version " + version);
+		}
+		return ItemStack.deserialize(readMap(in));
+	}
+	
+	/**
+	 * Content hash of an encoded item, long enough that two different encodings never share one in practice.
+	 * Equal items encode the same way, so it identifies an item without decoding or comparing it
+	 * @param data Output of encode()
+	 * @return The first 64 bits of the encoding's SHA-1
+	 */
+	public static long fingerprint(byte[] data) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(data);
+			long fingerprint = 0;
+			for (int i = 0; i < 8; i++) {
+				fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+			}
+			return fingerprint;
+		} catch(NoSuchAlgorithmException e) {
+			// Every JVM has to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+		out.writeInt(map.size());
+		for (Entry<?, ?> entry : map.entrySet()) {
+			writeString(out, entry.getKey().toString());
+			writeValue(out, entry.getValue());
+		}
+	}
+	
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(TAG_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(TAG_INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(TAG_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Short) {
+			out.writeByte(TAG_SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Byte) {
+			out.writeByte(TAG_BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Double) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.writeByte(TAG_FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(TAG_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			out.writeByte(TAG_LIST);
+			out.writeInt(list.size());
+			for (Object ob : list) {
+				writeValue(out, ob);
+			}
+		} else if (value instanceof Map) {
+			out.writeByte(TAG_MAP);
+			writeMap(out, (Map<?, ?>) value);
+		} else if (value instanceof ConfigurationSerializable) {
+			ConfigurationSerializable serializable = (ConfigurationSerializable) value;
+			out.writeByte(TAG_SERIALIZABLE);
+			writeString(out, ConfigurationSerialization.getAlias(serializable.getClass()));
+			writeMap(out, serializable.serialize());
+		} else {
+			throw new IOException("Can't encode a value of type " + value.getClass().getName());
+		}
+	}
+	
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] utf = string.getBytes("UTF-8");
+		out.writeInt(utf.length);
+		out.write(utf);
+	}
+	
+	private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		Map<String, Object> map = new LinkedHashMap<String, Object>(size * 2);
+		for (int i = 0; i < size; i++) {
+			String key = readString(in);
+			map.put(key, readValue(in));
+		}
+		return map;
+	}
+	
+	private static Object readValue(DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch(tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return readString(in);
+			case TAG_INT:
+				return in.readInt();
+			case TAG_LONG:
+				return in.readLong();
+			case TAG_SHORT:
+				return in.readShort();
+			case TAG_BYTE:
+				return in.readByte();
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_FLOAT:
+				return in.readFloat();
+			case TAG_BOOLEAN:
+				return in.readBoolean();
+			case TAG_LIST:
+				int size = in.readInt();
+				List<Object> list = new ArrayList<Object>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(readValue(in));
+				}
+				return list;
+			case TAG_MAP:
+				return readMap(in);
+			case TAG_SERIALIZABLE:
+				String alias = readString(in);
+				Map<String, Object> args = readMap(in);
+				args.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, alias);
+				return ConfigurationSerialization.deserializeObject(args);
+			default:
+				throw new IOException("Unknown value tag " + tag);
+		}
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] utf = new byte[in.readInt()];
+		in.readFully(utf);
+		return new String(utf, "UTF-8");
+	}
+}
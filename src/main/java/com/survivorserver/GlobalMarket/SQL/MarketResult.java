@@ -1,7 +1,9 @@
 package com.survivorserver.GlobalMarket.SQL;
 
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -14,11 +16,20 @@ import com.survivorserver.GlobalMarket.MarketStorage;
 public class MarketResult {
 
 	private ResultSet set;
+	private Statement owner;
 	
 	public MarketResult(ResultSet set) {
 		this.set = set;
 	}
 	
+	/**
+	 * @param owner Statement that's closed along with the result
+	 */
+	MarketResult(ResultSet set, Statement owner) {
+		this(set);
+		this.owner = owner;
+	}
+	
 	public boolean isEmpty() {
 		try {
 			return set == null ? true : !set.isBeforeFirst();
@@ -151,6 +162,43 @@ public class MarketResult {
 		}
 	}
 	
+	public byte[] getBytes(String label) {
+		try {
+			if (set.isBeforeFirst()) {
+				set.next();
+			}
+			return set.getBytes(label);
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Decodes the item held by the format, item and data columns of an items row
+	 * @return ItemStack with an amount of 1
+	 */
+	public ItemStack getItemStack() {
+		try {
+			if (set.isBeforeFirst()) {
+				set.next();
+			}
+			if (set.getInt("format") == ItemCodec.FORMAT_BINARY) {
+				return ItemCodec.decode(set.getBytes("data"));
+			}
+			return MarketStorage.itemStackFromString(set.getString("item"));
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return null;
+		} catch (InvalidConfigurationException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
 	public ItemStack getItemStack(String label) {
 		try {
 			if (set.isBeforeFirst()) {
@@ -195,6 +243,9 @@ public class MarketResult {
 	public void close() {
 		try {
 			set.close();
+			if (owner != null) {
+				owner.close();
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
@@ -1,17 +1,18 @@
 package com.survivorserver.GlobalMarket.SQL;
 
+import java.io.IOException;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.logging.Logger;
 
 import org.bukkit.inventory.ItemStack;
 
-import com.survivorserver.GlobalMarket.MarketStorage;
-
 public class MarketStatement {
 
 	private Logger log;
 	private PreparedStatement statement;
+	private Database db;
 	private int counter = 1;
 	
 	public MarketStatement(Logger log, PreparedStatement statement) {
@@ -19,6 +20,14 @@ public class MarketStatement {
 		this.log = log;
 	}
 	
+	/*
+	 * Statements created by a Database are cached by it, so they're left open after executing
+	 */
+	MarketStatement(Logger log, PreparedStatement statement, Database db) {
+		this(log, statement);
+		this.db = db;
+	}
+	
 	public MarketStatement setString(String string) {
 		try {
 			statement.setString(counter, string);
@@ -67,15 +76,31 @@ public class MarketStatement {
 		}
 	}
 	
+	public MarketStatement setBytes(byte[] bytes) {
+		try {
+			statement.setBytes(counter, bytes);
+			counter++;
+			return this;
+		} catch (SQLException e) {
+			log.info("An exception occurred while preparing an SQL statement:");
+			e.printStackTrace();
+			return this;
+		}
+	}
+	
 	public MarketStatement setItemStack(ItemStack item) {
 		try {
-			statement.setString(counter, MarketStorage.itemStackToString(item));
+			statement.setBytes(counter, ItemCodec.encode(item));
 			counter++;
 			return this;
 		} catch (SQLException e) {
 			log.info("An exception occurred while preparing an SQL statement:");
 			e.printStackTrace();
 			return this;
+		} catch (IOException e) {
+			log.info("An exception occurred while encoding an item:");
+			e.printStackTrace();
+			return this;
 		}
 	}
 	
@@ -94,13 +119,25 @@ public class MarketStatement {
 	public void execute() {
 		try {
 			statement.executeUpdate();
-			statement.close();
+			closeIfUncached();
 		} catch (SQLException e) {
 			log.info("An exception occurred while executing an SQL statement:");
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Executes the statement, leaving errors to the caller
+	 * @return Number of rows affected
+	 */
+	public int executeUpdate() throws SQLException {
+		try {
+			return statement.executeUpdate();
+		} finally {
+			closeIfUncached();
+		}
+	}
+	
 	public MarketResult executeAndGetKeys() {
 		try {
 			statement.executeUpdate();
@@ -116,13 +153,23 @@ public class MarketStatement {
 	
 	public MarketResult query() {
 		try {
-			MarketResult result = new MarketResult(statement.executeQuery());
-			//statement.close();
-			return result;
+			ResultSet set = statement.executeQuery();
+			if (db == null) {
+				// Nothing else will close it
+				return new MarketResult(set, statement);
+			}
+			db.setLastResult(set);
+			return new MarketResult(set);
 		} catch (SQLException e) {
 			log.info("An exception occurred while executing an SQL statement:");
 			e.printStackTrace();
 			return null;
 		}
 	}
+	
+	private void closeIfUncached() throws SQLException {
+		if (db == null) {
+			statement.close();
+		}
+	}
 }
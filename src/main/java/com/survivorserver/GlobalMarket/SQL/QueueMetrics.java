@@ -0,0 +1,148 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for the DB queue, updated by the writer thread and read by /market dbstats
+ */
+public class QueueMetrics {
+	
+	// Upper bounds of the flush duration buckets in ms, the last bucket takes everything slower
+	public static final long[] FLUSH_BUCKETS = new long[] {10, 50, 100, 250, 1000, 5000};
+	// Seconds of history used for the write rate
+	private static final int RATE_WINDOW = 60;
+	
+	private AtomicLong written;
+	private AtomicLong coalesced;
+	private AtomicLong dropped;
+	private AtomicLong connectionFailures;
+	private AtomicLong flushes;
+	private AtomicLong flushNanos;
+	private AtomicLong maxFlushNanos;
+	private AtomicLongArray flushHistogram;
+	private AtomicLong deferred;
+	// Statements written per second, indexed by second modulo the window
+	private AtomicLongArray rate;
+	private AtomicLongArray rateSecond;
+	
+	public QueueMetrics() {
+		written = new AtomicLong();
+		coalesced = new AtomicLong();
+		dropped = new AtomicLong();
+		connectionFailures = new AtomicLong();
+		flushes = new AtomicLong();
+		flushNanos = new AtomicLong();
+		maxFlushNanos = new AtomicLong();
+		flushHistogram = new AtomicLongArray(FLUSH_BUCKETS.length + 1);
+		deferred = new AtomicLong();
+		rate = new AtomicLongArray(RATE_WINDOW);
+		rateSecond = new AtomicLongArray(RATE_WINDOW);
+	}
+	
+	public void recordWritten(int count) {
+		written.addAndGet(count);
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int) (second % RATE_WINDOW);
+		if (rateSecond.get(slot) != second) {
+			// Only the writer thread records, so resetting a stale slot can't race
+			rateSecond.set(slot, second);
+			rate.set(slot, 0);
+		}
+		rate.addAndGet(slot, count);
+	}
+	
+	public void recordFlush(long nanos) {
+		flushes.incrementAndGet();
+		flushNanos.addAndGet(nanos);
+		long max = maxFlushNanos.get();
+		while (nanos > max && !maxFlushNanos.compareAndSet(max, nanos)) {
+			max = maxFlushNanos.get();
+		}
+		long ms = nanos / 1000000;
+		int bucket = 0;
+		while (bucket < FLUSH_BUCKETS.length && ms >= FLUSH_BUCKETS[bucket]) {
+			bucket++;
+		}
+		flushHistogram.incrementAndGet(bucket);
+	}
+	
+	public void recordCoalesced(int count) {
+		coalesced.addAndGet(count);
+	}
+	
+	public void recordDropped() {
+		dropped.incrementAndGet();
+	}
+	
+	public void recordConnectionFailure() {
+		connectionFailures.incrementAndGet();
+	}
+	
+	public void recordDeferred(int count) {
+		deferred.addAndGet(count);
+	}
+	
+	public long getWritten() {
+		return written.get();
+	}
+	
+	/**
+	 * @return Statements written per second, averaged over the last minute
+	 */
+	public double getWriteRate() {
+		long now = System.currentTimeMillis() / 1000;
+		long total = 0;
+		for (int i = 0; i < RATE_WINDOW; i++) {
+			// Skip the current second, it isn't over yet
+			long second = rateSecond.get(i);
+			if (second < now && now - second <= RATE_WINDOW) {
+				total += rate.get(i);
+			}
+		}
+		return total / (double) RATE_WINDOW;
+	}
+	
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+	
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	public long getConnectionFailures() {
+		return connectionFailures.get();
+	}
+	
+	public long getDeferred() {
+		return deferred.get();
+	}
+	
+	public long getFlushes() {
+		return flushes.get();
+	}
+	
+	/**
+	 * @return Average flush duration in ms
+	 */
+	public double getAverageFlush() {
+		long count = flushes.get();
+		return count == 0 ? 0 : flushNanos.get() / (double) count / 1000000;
+	}
+	
+	public double getMaxFlush() {
+		return maxFlushNanos.get() / 1000000D;
+	}
+	
+	/**
+	 * @return Number of flushes in each bucket of FLUSH_BUCKETS, plus one for flushes slower than the last bound
+	 */
+	public long[] getFlushHistogram() {
+		long[] histogram = new long[flushHistogram.length()];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = flushHistogram.get(i);
+		}
+		return histogram;
+	}
+}
@@ -1,6 +1,10 @@
 package com.survivorserver.GlobalMarket.SQL;
 
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.bukkit.inventory.ItemStack;
 
@@ -8,12 +12,29 @@ import com.survivorserver.GlobalMarket.Market;
 
 public class QueuedStatement {
 
+	/**
+	 * What a statement does to the entity it's tagged with
+	 */
+	public enum Change {
+		INSERT, UPDATE, DELETE
+	}
+	
 	private String query;
 	private ArrayList<Object> values;
+	private Runnable callback;
+	private long seq;
+	private String entity;
+	private Change change;
+	private String replaceKey;
+	private List<QueuedStatement> covered;
+	private boolean deferrable;
+	private boolean coalesced;
+	private long queued;
 	
 	public QueuedStatement(String query) {
 		this.query = query;
 		values = new ArrayList<Object>();
+		queued = System.currentTimeMillis();
 	}
 	
 	public QueuedStatement setValue(Object ob) {
@@ -21,12 +42,198 @@ public class QueuedStatement {
 		return this;
 	}
 	
+	/**
+	 * Sets a task that's run once this statement has been executed
+	 * @param callback Task to run on the DB queue's thread
+	 * @return this
+	 */
+	public QueuedStatement setCallback(Runnable callback) {
+		this.callback = callback;
+		return this;
+	}
+	
+	/**
+	 * Marks this statement as one that can wait, like history, so it's written after
+	 * everything else while the DB queue is backed up
+	 * @return this
+	 */
+	public QueuedStatement setDeferrable(boolean deferrable) {
+		this.deferrable = deferrable;
+		return this;
+	}
+	
+	public boolean isDeferrable() {
+		return deferrable;
+	}
+	
+	/**
+	 * Marks this statement as made redundant by another one, so it's skipped when the queue is written
+	 */
+	public void setCoalesced() {
+		coalesced = true;
+	}
+	
+	public boolean isCoalesced() {
+		return coalesced;
+	}
+	
+	/**
+	 * @return When this statement was created, in ms
+	 */
+	public long getQueued() {
+		return queued;
+	}
+	
+	/**
+	 * Tags the row this statement changes, so an insert and a delete of the same row that
+	 * are both still queued can cancel out along with everything queued in between
+	 * @param entity Table and ID of the row, like "listings:12"
+	 * @param change What this statement does to it
+	 * @return this
+	 */
+	public QueuedStatement setEntity(String entity, Change change) {
+		this.entity = entity;
+		this.change = change;
+		return this;
+	}
+	
+	public String getEntity() {
+		return entity;
+	}
+	
+	public Change getChange() {
+		return change;
+	}
+	
+	/**
+	 * Statements with the same replace key overwrite the same value, only the last queued one needs to run
+	 * @return this
+	 */
+	public QueuedStatement setReplaceKey(String replaceKey) {
+		this.replaceKey = replaceKey;
+		return this;
+	}
+	
+	public String getReplaceKey() {
+		return replaceKey;
+	}
+	
+	/**
+	 * @return Key shared by statements that can be merged with absorb(), or null
+	 */
+	public String getMergeKey() {
+		return null;
+	}
+	
+	/**
+	 * Folds a later statement into this one
+	 * @param other Statement with the same merge key
+	 * @return True if other no longer needs to run
+	 */
+	public boolean absorb(QueuedStatement other) {
+		return false;
+	}
+	
+	/**
+	 * Records that a statement was dropped because this one makes it redundant. It's treated
+	 * as executed whenever this one is
+	 */
+	public void cover(QueuedStatement other) {
+		if (covered == null) {
+			covered = new ArrayList<QueuedStatement>(1);
+		}
+		covered.add(other);
+	}
+	
+	/**
+	 * Adds the journal positions of this statement and every statement it covers
+	 */
+	public void getSequences(List<Long> sequences) {
+		if (seq != 0) {
+			sequences.add(seq);
+		}
+		if (covered != null) {
+			for (QueuedStatement other : covered) {
+				other.getSequences(sequences);
+			}
+		}
+	}
+	
+	/**
+	 * @return Lowest journal position of this statement and every statement it covers, or Long.MAX_VALUE if none were journaled
+	 */
+	public long getLowestSequence() {
+		long lowest = seq != 0 ? seq : Long.MAX_VALUE;
+		if (covered != null) {
+			for (QueuedStatement other : covered) {
+				lowest = Math.min(lowest, other.getLowestSequence());
+			}
+		}
+		return lowest;
+	}
+	
+	public void executed() {
+		if (callback != null) {
+			callback.run();
+		}
+		if (covered != null) {
+			for (QueuedStatement other : covered) {
+				other.executed();
+			}
+		}
+	}
+	
+	protected void clearValues() {
+		values.clear();
+	}
+	
+	public String getQuery() {
+		return query;
+	}
+	
+	public List<Object> getValues() {
+		return values;
+	}
+	
+	/**
+	 * @return Position of this statement in the journal, 0 if it hasn't been journaled
+	 */
+	public long getSequence() {
+		return seq;
+	}
+	
+	public void setSequence(long seq) {
+		this.seq = seq;
+	}
+	
+	/**
+	 * Sets this statement's values on a statement prepared from the same query
+	 */
+	public void bind(PreparedStatement statement) throws SQLException {
+		for (int i = 0; i < values.size(); i++) {
+			Object ob = values.get(i);
+			if (ob instanceof ItemStack) {
+				try {
+					statement.setBytes(i + 1, ItemCodec.encode((ItemStack) ob));
+				} catch(IOException e) {
+					throw new SQLException("Couldn't encode item: " + e.getMessage());
+				}
+			} else if (ob instanceof byte[]) {
+				statement.setBytes(i + 1, (byte[]) ob);
+			} else {
+				statement.setObject(i + 1, ob);
+			}
+		}
+	}
+	
 	public MarketStatement buildStatement(Database db) {
 		try {
 			MarketStatement statement = db.createStatement(query);
 			for (Object ob : values) {
 				if (ob instanceof ItemStack) {
 					statement.setItemStack((ItemStack) ob);
+				} else if (ob instanceof byte[]) {
+					statement.setBytes((byte[]) ob);
 				} else {
 					statement.setObject(ob);
 				}
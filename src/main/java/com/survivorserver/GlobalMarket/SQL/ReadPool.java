@@ -0,0 +1,167 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.survivorserver.GlobalMarket.Market;
+
+/**
+ * Connections used for reads only, kept apart from the DB queue's connection so
+ * reads and queue flushes never wait on each other
+ */
+public class ReadPool {
+	
+	private static final long BORROW_TIMEOUT = 5000;
+	// Idle connections are checked before being handed out again
+	private static final long VALIDATE_AFTER = 30000;
+	
+	private Market market;
+	private int size;
+	private boolean sqlite;
+	private BlockingQueue<PooledConnection> idle;
+	private AtomicInteger created;
+	private volatile boolean closed;
+	private AtomicLong borrows;
+	private AtomicLong waitNanos;
+	private AtomicLong maxWaitNanos;
+	private AtomicLong timeouts;
+	private AtomicLong reconnects;
+	
+	public ReadPool(Market market, int size) {
+		this.market = market;
+		this.size = Math.max(1, size);
+		sqlite = market.getConfigHandler().getStorageMethod() == StorageMethod.SQLITE;
+		idle = new ArrayBlockingQueue<PooledConnection>(this.size);
+		created = new AtomicInteger();
+		borrows = new AtomicLong();
+		waitNanos = new AtomicLong();
+		maxWaitNanos = new AtomicLong();
+		timeouts = new AtomicLong();
+		reconnects = new AtomicLong();
+	}
+	
+	/**
+	 * Takes a connection from the pool, opening one if the pool isn't full yet. It has to be given back with release()
+	 * @return A connected Database
+	 * @throws SQLException If no connection could be had in time
+	 */
+	public Database borrow() throws SQLException {
+		if (closed) {
+			throw new SQLException("Read pool is closed");
+		}
+		long started = System.nanoTime();
+		PooledConnection pooled = idle.poll();
+		if (pooled == null) {
+			if (created.incrementAndGet() <= size) {
+				pooled = new PooledConnection(open());
+			} else {
+				created.decrementAndGet();
+				try {
+					pooled = idle.poll(BORROW_TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (pooled == null) {
+					timeouts.incrementAndGet();
+					throw new SQLException("Timed out waiting for a read connection");
+				}
+			}
+		}
+		recordWait(System.nanoTime() - started);
+		if (System.currentTimeMillis() - pooled.lastUsed > VALIDATE_AFTER && !pooled.db.isConnected()) {
+			reconnects.incrementAndGet();
+			if (!pooled.db.connect()) {
+				// Keep the slot so the next borrow can try again
+				idle.offer(pooled);
+				throw new SQLException("Couldn't reconnect a read connection");
+			}
+		}
+		return pooled.db;
+	}
+	
+	public void release(Database db) {
+		if (db == null) {
+			return;
+		}
+		if (closed || !idle.offer(new PooledConnection(db))) {
+			db.close();
+		}
+	}
+	
+	private Database open() throws SQLException {
+		Database db = market.getConfigHandler().createConnection();
+		if (!db.connect()) {
+			created.decrementAndGet();
+			throw new SQLException("Couldn't open a read connection");
+		}
+		if (!sqlite) {
+			// SQLite readers rely on WAL mode instead, its driver can't switch an open connection to read-only
+			db.setReadOnly(true);
+		}
+		return db;
+	}
+	
+	private void recordWait(long nanos) {
+		borrows.incrementAndGet();
+		waitNanos.addAndGet(nanos);
+		long max = maxWaitNanos.get();
+		while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+	
+	public void close() {
+		closed = true;
+		PooledConnection pooled;
+		while ((pooled = idle.poll()) != null) {
+			pooled.db.close();
+		}
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public int getIdle() {
+		return idle.size();
+	}
+	
+	public long getBorrows() {
+		return borrows.get();
+	}
+	
+	/**
+	 * @return Average time spent waiting for a connection in ms
+	 */
+	public double getAverageWait() {
+		long count = borrows.get();
+		return count == 0 ? 0 : waitNanos.get() / (double) count / 1000000;
+	}
+	
+	public double getMaxWait() {
+		return maxWaitNanos.get() / 1000000D;
+	}
+	
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+	
+	public long getReconnects() {
+		return reconnects.get();
+	}
+	
+	private static class PooledConnection {
+		
+		Database db;
+		long lastUsed;
+		
+		PooledConnection(Database db) {
+			this.db = db;
+			lastUsed = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.sql.SQLException;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.survivorserver.GlobalMarket.Market;
+
+/**
+ * Applies numbered schema migrations in order, recording each one in the
+ * schema_version table so it only ever runs once per database
+ */
+public class SchemaManager {
+	
+	public interface Migration {
+		
+		void apply(Database db) throws SQLException;
+	}
+	
+	private Market market;
+	private Database db;
+	private boolean sqlite;
+	private TreeMap<Integer, Migration> migrations;
+	private TreeMap<Integer, String> descriptions;
+	
+	public SchemaManager(Market market, Database db, boolean sqlite) {
+		this.market = market;
+		this.db = db;
+		this.sqlite = sqlite;
+		migrations = new TreeMap<Integer, Migration>();
+		descriptions = new TreeMap<Integer, String>();
+	}
+	
+	/**
+	 * Registers a migration. Versions must never be reused or renumbered once released
+	 * @param version Schema version this migration brings the database to
+	 * @param description Logged when the migration runs
+	 * @param migration Changes to apply
+	 * @return this
+	 */
+	public SchemaManager addMigration(int version, String description, Migration migration) {
+		if (migrations.containsKey(version)) {
+			throw new IllegalArgumentException("Schema version " + version + " is already registered");
+		}
+		migrations.put(version, migration);
+		descriptions.put(version, description);
+		return this;
+	}
+	
+	public int getVersion() throws SQLException {
+		MarketResult res = db.createStatement("SELECT MAX(version) FROM schema_version").query();
+		int version = res.next() ? res.getInt(1) : 0;
+		res.close();
+		return version;
+	}
+	
+	/**
+	 * Runs every migration newer than the database's version. Stops at the first failure
+	 * since later migrations may depend on it
+	 * @return True if the schema is up to date
+	 */
+	public boolean migrate() {
+		try {
+			db.createStatement("CREATE TABLE IF NOT EXISTS schema_version ("
+					+ "version int NOT NULL PRIMARY KEY, "
+					+ "applied BIGINT)").executeUpdate();
+			int version = getVersion();
+			for (Entry<Integer, Migration> entry : migrations.tailMap(version + 1).entrySet()) {
+				market.log.info("Updating database to version " + entry.getKey() + ": " + descriptions.get(entry.getKey()));
+				entry.getValue().apply(db);
+				db.createStatement("INSERT INTO schema_version (version, applied) VALUES (?, ?)")
+				.setInt(entry.getKey())
+				.setLong(System.currentTimeMillis())
+				.executeUpdate();
+			}
+			return true;
+		} catch(SQLException e) {
+			market.log.severe("Error while updating the database schema:");
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates an index unless one with the same name already exists. MySQL can only index
+	 * text and blob columns by a prefix, so its column list is given separately
+	 * @param name Index name
+	 * @param table Table to index
+	 * @param sqliteColumns Column list used on SQLite
+	 * @param mysqlColumns Column list used on MySQL, with prefix lengths
+	 */
+	public void createIndex(String name, String table, String sqliteColumns, String mysqlColumns) throws SQLException {
+		if (db.hasIndex(table, name)) {
+			return;
+		}
+		db.createUncachedStatement("CREATE INDEX " + name + " ON " + table + " (" + (sqlite ? sqliteColumns : mysqlColumns) + ")").executeUpdate();
+	}
+}
@@ -0,0 +1,125 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.survivorserver.GlobalMarket.SQL.QueuedStatement.Change;
+
+/**
+ * Collapses queued statements that cancel or overwrite each other before they're written.
+ * Statements are indexed by their keys as they're added, so each one is only checked against
+ * the statements it could coalesce with, not the whole backlog.
+ */
+public class StatementCoalescer {
+	
+	private Map<String, QueuedStatement> merged;
+	private Map<String, QueuedStatement> replaced;
+	// Statements for rows inserted since the last write, by entity
+	private Map<String, List<QueuedStatement>> inserted;
+	
+	public StatementCoalescer() {
+		merged = new HashMap<String, QueuedStatement>();
+		replaced = new HashMap<String, QueuedStatement>();
+		inserted = new HashMap<String, List<QueuedStatement>>();
+	}
+	
+	/**
+	 * Coalesces a statement against the unwritten statements added before it. Statements made
+	 * redundant by one that's kept are covered by it, and every statement that's no longer needed,
+	 * possibly this one, is marked as coalesced
+	 * @param statement The next statement, in queue order
+	 * @param cancelled Gets the statements that cancelled out with nothing left to run for them
+	 * @return How many statements were marked as coalesced
+	 */
+	public int add(QueuedStatement statement, List<QueuedStatement> cancelled) {
+		String mergeKey = statement.getMergeKey();
+		if (mergeKey != null) {
+			QueuedStatement target = merged.get(mergeKey);
+			if (target != null && target.absorb(statement)) {
+				target.cover(statement);
+				statement.setCoalesced();
+				return 1;
+			}
+			merged.put(mergeKey, statement);
+		}
+		int dropped = 0;
+		String replaceKey = statement.getReplaceKey();
+		if (replaceKey != null) {
+			QueuedStatement previous = replaced.put(replaceKey, statement);
+			if (previous != null) {
+				statement.cover(previous);
+				drop(previous);
+				dropped++;
+			}
+		}
+		String entity = statement.getEntity();
+		if (entity == null) {
+			return dropped;
+		}
+		if (statement.getChange() == Change.INSERT) {
+			List<QueuedStatement> touched = new ArrayList<QueuedStatement>();
+			touched.add(statement);
+			inserted.put(entity, touched);
+		} else if (inserted.containsKey(entity)) {
+			inserted.get(entity).add(statement);
+			if (statement.getChange() == Change.DELETE) {
+				// The row never has to exist
+				for (QueuedStatement touched : inserted.remove(entity)) {
+					if (!touched.isCoalesced()) {
+						drop(touched);
+						cancelled.add(touched);
+						dropped++;
+					}
+				}
+			}
+		}
+		return dropped;
+	}
+	
+	/**
+	 * Forgets a statement once it's been written, nothing later can coalesce into it
+	 */
+	public void written(QueuedStatement statement) {
+		forget(statement);
+		String entity = statement.getEntity();
+		if (entity != null) {
+			List<QueuedStatement> touched = inserted.get(entity);
+			if (touched != null && touched.contains(statement)) {
+				// The row exists now, a later delete has to run
+				inserted.remove(entity);
+			}
+		}
+	}
+	
+	/**
+	 * @param entity Entity key, like listings:5
+	 * @return True if a statement inserting the entity's row hasn't been written yet
+	 */
+	public boolean hasInsert(String entity) {
+		return inserted.containsKey(entity);
+	}
+	
+	public void clear() {
+		merged.clear();
+		replaced.clear();
+		inserted.clear();
+	}
+	
+	private void drop(QueuedStatement statement) {
+		statement.setCoalesced();
+		forget(statement);
+	}
+	
+	private void forget(QueuedStatement statement) {
+		String mergeKey = statement.getMergeKey();
+		if (mergeKey != null && merged.get(mergeKey) == statement) {
+			merged.remove(mergeKey);
+		}
+		String replaceKey = statement.getReplaceKey();
+		if (replaceKey != null && replaced.get(replaceKey) == statement) {
+			replaced.remove(replaceKey);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Append-only log of queued statements that haven't been committed to the
+ * database yet. Statements are appended before they're written and a commit
+ * record is appended once they are, so whatever was queued when the server
+ * died can be replayed on the next startup.
+ */
+public class StatementJournal {
+	
+	private static final byte RECORD_STATEMENT = 1;
+	private static final byte RECORD_COMMIT_LIST = 3;
+	
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INT = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_DOUBLE = 4;
+	private static final byte TYPE_BYTES = 5;
+	private static final byte TYPE_BOOLEAN = 6;
+	private static final byte TYPE_FLOAT = 7;
+	
+	private File file;
+	private RandomAccessFile raf;
+	private long nextSeq = 1;
+	
+	public StatementJournal(File file) {
+		this.file = file;
+	}
+	
+	private RandomAccessFile getFile() throws IOException {
+		if (raf == null) {
+			raf = new RandomAccessFile(file, "rw");
+			raf.seek(raf.length());
+		}
+		return raf;
+	}
+	
+	/**
+	 * Appends statements and waits for them to reach the disk, once for the whole list
+	 * @param statements Statements about to be written to the database
+	 */
+	public synchronized void append(List<QueuedStatement> statements) throws IOException {
+		if (statements.isEmpty()) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (QueuedStatement statement : statements) {
+			statement.setSequence(nextSeq++);
+			writeRecord(out, RECORD_STATEMENT, encode(statement));
+		}
+		out.flush();
+		RandomAccessFile f = getFile();
+		f.write(bytes.toByteArray());
+		f.getChannel().force(false);
+	}
+	
+	/**
+	 * Records that statements have been committed. Coalescing means they aren't always a
+	 * contiguous range, so each one is listed
+	 * @param seqs Sequence numbers of the committed statements
+	 */
+	public synchronized void commit(List<Long> seqs) throws IOException {
+		if (seqs.isEmpty()) {
+			return;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(4 + seqs.size() * 8);
+		payload.putInt(seqs.size());
+		for (long seq : seqs) {
+			payload.putLong(seq);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeRecord(out, RECORD_COMMIT_LIST, payload.array());
+		out.flush();
+		RandomAccessFile f = getFile();
+		f.write(bytes.toByteArray());
+		f.getChannel().force(false);
+	}
+	
+	/**
+	 * Empties the journal. Only safe once every appended statement has been committed
+	 */
+	public synchronized void truncate() throws IOException {
+		RandomAccessFile f = getFile();
+		f.setLength(0);
+		f.seek(0);
+	}
+	
+	/**
+	 * Reads the statements that were appended but never committed. A torn record at the end
+	 * of the file, left by a crash during an append, ends the read
+	 * @return Uncommitted statements in the order they were queued
+	 */
+	public synchronized List<QueuedStatement> readUncommitted() throws IOException {
+		List<QueuedStatement> statements = new ArrayList<QueuedStatement>();
+		if (!file.exists() || file.length() == 0) {
+			return statements;
+		}
+		RandomAccessFile f = getFile();
+		byte[] data = new byte[(int) f.length()];
+		f.seek(0);
+		f.readFully(data);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		Set<Long> committedSeqs = new HashSet<Long>();
+		try {
+			while (in.available() > 0) {
+				byte type = in.readByte();
+				int length = in.readInt();
+				if (length < 0 || length > in.available()) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (in.readInt() != (int) crc.getValue()) {
+					break;
+				}
+				if (type == RECORD_STATEMENT) {
+					statements.add(decode(payload));
+				} else if (type == RECORD_COMMIT_LIST) {
+					ByteBuffer seqs = ByteBuffer.wrap(payload);
+					int count = seqs.getInt();
+					for (int i = 0; i < count; i++) {
+						committedSeqs.add(seqs.getLong());
+					}
+				}
+			}
+		} catch(EOFException ignored) { }
+		Iterator<QueuedStatement> it = statements.iterator();
+		while (it.hasNext()) {
+			QueuedStatement statement = it.next();
+			nextSeq = Math.max(nextSeq, statement.getSequence() + 1);
+			if (committedSeqs.contains(statement.getSequence())) {
+				it.remove();
+			}
+		}
+		f.seek(f.length());
+		return statements;
+	}
+	
+	public synchronized long getNextSeq() {
+		return nextSeq;
+	}
+	
+	/**
+	 * Makes sure sequence numbers start at least at the given one
+	 */
+	public synchronized void ensureNextSeq(long seq) {
+		nextSeq = Math.max(nextSeq, seq);
+	}
+	
+	public synchronized void close() {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch(IOException ignored) { }
+			raf = null;
+		}
+	}
+	
+	private static void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		out.writeByte(type);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	private static byte[] encode(QueuedStatement statement) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(statement.getSequence());
+		writeString(out, statement.getQuery());
+		List<Object> values = statement.getValues();
+		out.writeInt(values.size());
+		for (Object ob : values) {
+			if (ob == null) {
+				out.writeByte(TYPE_NULL);
+			} else if (ob instanceof String) {
+				out.writeByte(TYPE_STRING);
+				writeString(out, (String) ob);
+			} else if (ob instanceof Integer || ob instanceof Short || ob instanceof Byte) {
+				out.writeByte(TYPE_INT);
+				out.writeInt(((Number) ob).intValue());
+			} else if (ob instanceof Long) {
+				out.writeByte(TYPE_LONG);
+				out.writeLong((Long) ob);
+			} else if (ob instanceof Double) {
+				out.writeByte(TYPE_DOUBLE);
+				out.writeDouble((Double) ob);
+			} else if (ob instanceof Float) {
+				out.writeByte(TYPE_FLOAT);
+				out.writeFloat((Float) ob);
+			} else if (ob instanceof Boolean) {
+				out.writeByte(TYPE_BOOLEAN);
+				out.writeBoolean((Boolean) ob);
+			} else if (ob instanceof byte[]) {
+				out.writeByte(TYPE_BYTES);
+				out.writeInt(((byte[]) ob).length);
+				out.write((byte[]) ob);
+			} else if (ob instanceof ItemStack) {
+				// Bound as its encoded bytes anyway
+				byte[] data = ItemCodec.encode((ItemStack) ob);
+				out.writeByte(TYPE_BYTES);
+				out.writeInt(data.length);
+				out.write(data);
+			} else {
+				out.writeByte(TYPE_STRING);
+				writeString(out, ob.toString());
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static QueuedStatement decode(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		long seq = in.readLong();
+		QueuedStatement statement = new QueuedStatement(readString(in));
+		statement.setSequence(seq);
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			switch(type) {
+				case TYPE_NULL:
+					statement.setValue(null);
+					break;
+				case TYPE_STRING:
+					statement.setValue(readString(in));
+					break;
+				case TYPE_INT:
+					statement.setValue(in.readInt());
+					break;
+				case TYPE_LONG:
+					statement.setValue(in.readLong());
+					break;
+				case TYPE_DOUBLE:
+					statement.setValue(in.readDouble());
+					break;
+				case TYPE_FLOAT:
+					statement.setValue(in.readFloat());
+					break;
+				case TYPE_BOOLEAN:
+					statement.setValue(in.readBoolean());
+					break;
+				case TYPE_BYTES:
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					statement.setValue(data);
+					break;
+				default:
+					throw new IOException("Unknown value type " + type);
+			}
+		}
+		return statement;
+	}
+	
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,64 @@
+package com.survivorserver.GlobalMarket.SQL;
+
+/**
+ * Adds to a player's earned and spent totals. Queued increments for the same player are merged into one statement
+ */
+public class UserStatsStatement extends QueuedStatement {
+	
+	private static final String SQLITE_QUERY = "INSERT OR REPLACE INTO users (name, earned, spent) VALUES (?, "
+			+ "COALESCE((SELECT earned FROM users WHERE name=?), 0) + ?, "
+			+ "COALESCE((SELECT spent FROM users WHERE name=?), 0) + ?)";
+	private static final String MYSQL_QUERY = "INSERT INTO users (name, earned, spent) VALUES (?, ?, ?) "
+			+ "ON DUPLICATE KEY UPDATE earned=earned+?, spent=spent+?";
+	
+	private boolean sqlite;
+	private String player;
+	private double earned;
+	private double spent;
+	
+	public UserStatsStatement(boolean sqlite, String player, double earned, double spent) {
+		super(sqlite ? SQLITE_QUERY : MYSQL_QUERY);
+		this.sqlite = sqlite;
+		this.player = player;
+		this.earned = earned;
+		this.spent = spent;
+		bindValues();
+	}
+	
+	private void bindValues() {
+		clearValues();
+		if (sqlite) {
+			setValue(player)
+			.setValue(player)
+			.setValue(earned)
+			.setValue(player)
+			.setValue(spent);
+		} else {
+			setValue(player)
+			.setValue(earned)
+			.setValue(spent)
+			.setValue(earned)
+			.setValue(spent);
+		}
+	}
+	
+	@Override
+	public String getMergeKey() {
+		return "users:" + player;
+	}
+	
+	@Override
+	public boolean absorb(QueuedStatement other) {
+		if (!(other instanceof UserStatsStatement)) {
+			return false;
+		}
+		UserStatsStatement stats = (UserStatsStatement) other;
+		if (!player.equals(stats.player) || sqlite != stats.sqlite) {
+			return false;
+		}
+		earned += stats.earned;
+		spent += stats.spent;
+		bindValues();
+		return true;
+	}
+}
@@ -0,0 +1,248 @@
+package com.survivorserver.GlobalMarket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/**
+ * Substring index over the searchable text of every listing: friendly name,
+ * display name, lore lines and enchantment names. Every distinct lowercased
+ * text is indexed once by the 1, 2 and 3 character strings it contains. A search
+ * intersects the texts holding each of its trigrams and only checks those with
+ * contains(), so results are the same as checking every listing, without
+ * touching listings that can't match.
+ */
+public class SearchIndex {
+	
+	private static final int GRAM = 3;
+	
+	// Gram to the distinct texts containing it
+	private Map<String, Set<String>> grams;
+	// Text to the listings that have it
+	private Map<String, Set<Integer>> texts;
+	private Map<Integer, String[]> listingTexts;
+	private Map<Integer, Set<Integer>> typeIds;
+	private Map<Integer, Integer> listingTypes;
+	
+	public SearchIndex() {
+		grams = new HashMap<String, Set<String>>();
+		texts = new HashMap<String, Set<Integer>>();
+		listingTexts = new HashMap<Integer, String[]>();
+		typeIds = new HashMap<Integer, Set<Integer>>();
+		listingTypes = new HashMap<Integer, Integer>();
+	}
+	
+	public synchronized void clear() {
+		grams.clear();
+		texts.clear();
+		listingTexts.clear();
+		typeIds.clear();
+		listingTypes.clear();
+	}
+	
+	/**
+	 * Indexes a listing, replacing whatever was indexed for its ID before
+	 * @param listing Listing to index
+	 * @param item The listing's item, with the listing's amount
+	 * @param itemName The item's friendly name
+	 */
+	@SuppressWarnings("deprecation")
+	public synchronized void add(Listing listing, ItemStack item, String itemName) {
+		remove(listing.getId());
+		Set<String> found = new LinkedHashSet<String>();
+		found.add(itemName.toLowerCase());
+		if (item.hasItemMeta()) {
+			ItemMeta meta = item.getItemMeta();
+			if (meta.hasDisplayName()) {
+				found.add(meta.getDisplayName().toLowerCase());
+			}
+			if (meta.hasEnchants()) {
+				for (Entry<Enchantment, Integer> entry : meta.getEnchants().entrySet()) {
+					found.add(entry.getKey().getName().toLowerCase());
+				}
+			}
+			if (meta.hasLore()) {
+				for (String line : meta.getLore()) {
+					found.add(line.toLowerCase());
+				}
+			}
+		}
+		index(listing.getId(), found.toArray(new String[found.size()]), item.getTypeId());
+	}
+	
+	/**
+	 * Indexes a listing from what getTexts() and getType() returned for it before, without its item
+	 */
+	public synchronized void restore(int id, String[] found, int typeId) {
+		remove(id);
+		index(id, found, typeId);
+	}
+	
+	/**
+	 * @return The lowercased texts a listing is found by, or null if it isn't indexed
+	 */
+	public synchronized String[] getTexts(int id) {
+		return listingTexts.get(id);
+	}
+	
+	/**
+	 * @return The item type ID a listing is found by, or -1 if it isn't indexed
+	 */
+	public synchronized int getType(int id) {
+		Integer typeId = listingTypes.get(id);
+		return typeId == null ? -1 : typeId;
+	}
+	
+	private void index(int id, String[] found, int typeId) {
+		for (String text : found) {
+			Set<Integer> ids = texts.get(text);
+			if (ids == null) {
+				ids = new HashSet<Integer>();
+				texts.put(text, ids);
+				for (String gram : getGrams(text)) {
+					Set<String> containing = grams.get(gram);
+					if (containing == null) {
+						containing = new HashSet<String>();
+						grams.put(gram, containing);
+					}
+					containing.add(text);
+				}
+			}
+			ids.add(id);
+		}
+		listingTexts.put(id, found);
+		Set<Integer> ids = typeIds.get(typeId);
+		if (ids == null) {
+			ids = new HashSet<Integer>();
+			typeIds.put(typeId, ids);
+		}
+		ids.add(id);
+		listingTypes.put(id, typeId);
+	}
+	
+	public synchronized void remove(int id) {
+		String[] indexed = listingTexts.remove(id);
+		if (indexed != null) {
+			for (String text : indexed) {
+				Set<Integer> ids = texts.get(text);
+				if (ids == null) {
+					continue;
+				}
+				ids.remove(id);
+				if (ids.isEmpty()) {
+					// Last listing with this text, so it's no longer searchable
+					texts.remove(text);
+					for (String gram : getGrams(text)) {
+						Set<String> containing = grams.get(gram);
+						if (containing != null) {
+							containing.remove(text);
+							if (containing.isEmpty()) {
+								grams.remove(gram);
+							}
+						}
+					}
+				}
+			}
+		}
+		Integer typeId = listingTypes.remove(id);
+		if (typeId != null) {
+			Set<Integer> ids = typeIds.get(typeId);
+			ids.remove(id);
+			if (ids.isEmpty()) {
+				typeIds.remove(typeId);
+			}
+		}
+	}
+	
+	/**
+	 * Finds listings with the search somewhere in their friendly name, display name, an
+	 * enchantment or a lore line, ignoring case, or whose item type ID or listing ID is the search
+	 * @param search What the player typed
+	 * @return IDs of the matching listings
+	 */
+	public synchronized Set<Integer> find(String search) {
+		Set<Integer> result = new HashSet<Integer>();
+		String query = search.toLowerCase();
+		if (query.length() == 0) {
+			// Everything contains an empty string
+			result.addAll(listingTexts.keySet());
+			return result;
+		}
+		for (String text : findTexts(query)) {
+			result.addAll(texts.get(text));
+		}
+		try {
+			int number = Integer.parseInt(search);
+			if (Integer.toString(number).equals(search)) {
+				Set<Integer> ids = typeIds.get(number);
+				if (ids != null) {
+					result.addAll(ids);
+				}
+				if (listingTexts.containsKey(number)) {
+					result.add(number);
+				}
+			}
+		} catch(NumberFormatException ignored) { }
+		return result;
+	}
+	
+	private List<String> findTexts(String query) {
+		List<String> found = new ArrayList<String>();
+		if (query.length() <= GRAM) {
+			// Short searches are indexed as they are, nothing to check
+			Set<String> containing = grams.get(query);
+			if (containing != null) {
+				found.addAll(containing);
+			}
+			return found;
+		}
+		List<Set<String>> candidates = new ArrayList<Set<String>>();
+		for (int i = 0; i + GRAM <= query.length(); i++) {
+			Set<String> containing = grams.get(query.substring(i, i + GRAM));
+			if (containing == null) {
+				return found;
+			}
+			candidates.add(containing);
+		}
+		// Start from the rarest trigram so the intersection stays small
+		Set<String> smallest = candidates.get(0);
+		for (Set<String> containing : candidates) {
+			if (containing.size() < smallest.size()) {
+				smallest = containing;
+			}
+		}
+		for (String text : smallest) {
+			boolean all = true;
+			for (Set<String> containing : candidates) {
+				if (containing != smallest && !containing.contains(text)) {
+					all = false;
+					break;
+				}
+			}
+			// Having every trigram doesn't mean they're in order
+			if (all && text.contains(query)) {
+				found.add(text);
+			}
+		}
+		return found;
+	}
+	
+	private static Set<String> getGrams(String text) {
+		Set<String> found = new HashSet<String>();
+		for (int i = 0; i < text.length(); i++) {
+			for (int n = 1; n <= GRAM && i + n <= text.length(); n++) {
+				found.add(text.substring(i, i + n));
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,314 @@
+package com.survivorserver.GlobalMarket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import com.survivorserver.GlobalMarket.SQL.Database;
+import com.survivorserver.GlobalMarket.SQL.MarketResult;
+
+/**
+ * Binary copy of the in-memory storage model, written on shutdown so the next
+ * startup can skip reading everything from SQL. A snapshot is only trusted when
+ * its checksum holds and the tables it was taken from haven't changed since.
+ */
+public class StorageSnapshot {
+	
+	private static final int MAGIC = 0x474D534E;
+	private static final int VERSION = 5;
+	private static final String[] TABLES = new String[] {"listings", "mail", "queue_listings", "queue_mail", "items"};
+	/*
+	 * Max ID and row count can't see a row being updated in place. Mail pickup is the only
+	 * column that's updated, and every change another server makes is in the change log
+	 */
+	private static final String[] UPDATE_MARKS = new String[] {
+		"SELECT COUNT(*) FROM mail WHERE pickup>0",
+		"SELECT MAX(id) FROM market_changes"
+	};
+	
+	public List<Listing> listings;
+	public List<Mail> mail;
+	public List<QueueItem> queue;
+	public Map<Integer, byte[]> items;
+	// Search index entries by listing ID, so listings are searchable without reading their items
+	public Map<Integer, String[]> searchTexts;
+	public Map<Integer, Integer> searchTypes;
+	// Item fingerprints, including evicted items the snapshot doesn't hold
+	public Map<Long, Integer> fingerprints;
+	public long[] marks;
+	
+	public StorageSnapshot() {
+		listings = new ArrayList<Listing>();
+		mail = new ArrayList<Mail>();
+		queue = new ArrayList<QueueItem>();
+		items = new LinkedHashMap<Integer, byte[]>();
+		searchTexts = new HashMap<Integer, String[]>();
+		searchTypes = new HashMap<Integer, Integer>();
+		fingerprints = new HashMap<Long, Integer>();
+	}
+	
+	/**
+	 * Max ID and row count of every table the snapshot covers, plus marks that change when rows are updated
+	 * @param db Connection to read from
+	 * @return Marks to compare against a snapshot's marks
+	 */
+	public static long[] getHighWaterMarks(Database db) throws SQLException {
+		long[] marks = new long[TABLES.length * 2 + UPDATE_MARKS.length];
+		for (int i = 0; i < TABLES.length; i++) {
+			MarketResult res = db.createStatement("SELECT MAX(id), COUNT(*) FROM " + TABLES[i]).query();
+			if (res.next()) {
+				marks[i * 2] = res.getLong(1);
+				marks[i * 2 + 1] = res.getLong(2);
+			}
+			res.close();
+		}
+		for (int i = 0; i < UPDATE_MARKS.length; i++) {
+			MarketResult res = db.createStatement(UPDATE_MARKS[i]).query();
+			if (res.next()) {
+				marks[TABLES.length * 2 + i] = res.getLong(1);
+			}
+			res.close();
+		}
+		return marks;
+	}
+	
+	public boolean matches(long[] current) {
+		return Arrays.equals(marks, current);
+	}
+	
+	public void write(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(marks.length);
+		for (long mark : marks) {
+			out.writeLong(mark);
+		}
+		out.writeInt(listings.size());
+		for (Listing listing : listings) {
+			writeListing(out, listing);
+		}
+		out.writeInt(mail.size());
+		for (Mail m : mail) {
+			writeMail(out, m);
+		}
+		out.writeInt(queue.size());
+		for (QueueItem item : queue) {
+			out.writeInt(item.getId());
+			out.writeLong(item.getTime());
+			if (item.getMail() != null) {
+				out.writeBoolean(true);
+				writeMail(out, item.getMail());
+			} else {
+				out.writeBoolean(false);
+				writeListing(out, item.getListing());
+			}
+		}
+		out.writeInt(items.size());
+		for (Entry<Integer, byte[]> entry : items.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeInt(entry.getValue().length);
+			out.write(entry.getValue());
+		}
+		out.writeInt(searchTexts.size());
+		for (Entry<Integer, String[]> entry : searchTexts.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeInt(searchTypes.get(entry.getKey()));
+			out.writeInt(entry.getValue().length);
+			for (String text : entry.getValue()) {
+				writeString(out, text);
+			}
+		}
+		out.writeInt(fingerprints.size());
+		for (Entry<Long, Integer> entry : fingerprints.entrySet()) {
+			out.writeLong(entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+		out.flush();
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		// Write next to the real file first so a crash never leaves a half written snapshot behind
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			fileOut.writeInt(MAGIC);
+			fileOut.writeInt(VERSION);
+			fileOut.writeLong(crc.getValue());
+			fileOut.writeInt(payload.length);
+			fileOut.write(payload);
+		} finally {
+			fileOut.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Couldn't replace " + file.getName());
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Couldn't rename " + temp.getName());
+		}
+	}
+	
+	/**
+	 * Reads a snapshot by mapping the file into memory
+	 * @param file Snapshot file
+	 * @return The snapshot, or null if the file is missing, from another version or corrupt
+	 */
+	public static StorageSnapshot read(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.remaining() < 20 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				return null;
+			}
+			long checksum = buf.getLong();
+			int length = buf.getInt();
+			if (length != buf.remaining()) {
+				return null;
+			}
+			ByteBuffer payload = buf.slice();
+			CRC32 crc = new CRC32();
+			byte[] chunk = new byte[65536];
+			while (payload.hasRemaining()) {
+				int n = Math.min(chunk.length, payload.remaining());
+				payload.get(chunk, 0, n);
+				crc.update(chunk, 0, n);
+			}
+			if (crc.getValue() != checksum) {
+				return null;
+			}
+			payload.rewind();
+			return read(payload);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static StorageSnapshot read(ByteBuffer in) throws IOException {
+		StorageSnapshot snapshot = new StorageSnapshot();
+		snapshot.marks = new long[in.getInt()];
+		for (int i = 0; i < snapshot.marks.length; i++) {
+			snapshot.marks[i] = in.getLong();
+		}
+		int count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			snapshot.listings.add(readListing(in));
+		}
+		count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			snapshot.mail.add(readMail(in));
+		}
+		count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			int id = in.getInt();
+			long created = in.getLong();
+			if (in.get() != 0) {
+				snapshot.queue.add(new QueueItem(id, created, readMail(in)));
+			} else {
+				snapshot.queue.add(new QueueItem(id, created, readListing(in)));
+			}
+		}
+		count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			int id = in.getInt();
+			byte[] data = new byte[in.getInt()];
+			in.get(data);
+			snapshot.items.put(id, data);
+		}
+		count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			int id = in.getInt();
+			snapshot.searchTypes.put(id, in.getInt());
+			String[] texts = new String[in.getInt()];
+			for (int t = 0; t < texts.length; t++) {
+				texts[t] = readString(in);
+			}
+			snapshot.searchTexts.put(id, texts);
+		}
+		count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			long fingerprint = in.getLong();
+			snapshot.fingerprints.put(fingerprint, in.getInt());
+		}
+		return snapshot;
+	}
+	
+	private static void writeListing(DataOutputStream out, Listing listing) throws IOException {
+		out.writeInt(listing.getId());
+		writeString(out, listing.getSeller());
+		out.writeInt(listing.getItemId());
+		out.writeInt(listing.getAmount());
+		out.writeDouble(listing.getPrice());
+		writeString(out, listing.getWorld());
+		out.writeLong(listing.getTime());
+	}
+	
+	private static Listing readListing(ByteBuffer in) throws IOException {
+		int id = in.getInt();
+		String seller = readString(in);
+		int itemId = in.getInt();
+		int amount = in.getInt();
+		double price = in.getDouble();
+		String world = readString(in);
+		long time = in.getLong();
+		return new Listing(id, seller, itemId, amount, price, world, time);
+	}
+	
+	private static void writeMail(DataOutputStream out, Mail m) throws IOException {
+		out.writeInt(m.getId());
+		writeString(out, m.getOwner());
+		out.writeInt(m.getItemId());
+		out.writeInt(m.getAmount());
+		out.writeDouble(m.getPickup());
+		writeString(out, m.getSender());
+		writeString(out, m.getWorld());
+	}
+	
+	private static Mail readMail(ByteBuffer in) throws IOException {
+		int id = in.getInt();
+		String owner = readString(in);
+		int itemId = in.getInt();
+		int amount = in.getInt();
+		double pickup = in.getDouble();
+		String sender = readString(in);
+		String world = readString(in);
+		return new Mail(owner, id, itemId, amount, pickup, sender, world);
+	}
+	
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = str.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
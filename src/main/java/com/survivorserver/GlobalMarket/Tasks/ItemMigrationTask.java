@@ -0,0 +1,90 @@
+package com.survivorserver.GlobalMarket.Tasks;
+
+import java.sql.SQLException;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.survivorserver.GlobalMarket.Market;
+import com.survivorserver.GlobalMarket.MarketStorage;
+import com.survivorserver.GlobalMarket.SQL.AsyncDatabase;
+import com.survivorserver.GlobalMarket.SQL.Database;
+import com.survivorserver.GlobalMarket.SQL.ItemCodec;
+import com.survivorserver.GlobalMarket.SQL.MarketResult;
+import com.survivorserver.GlobalMarket.SQL.QueuedStatement;
+import com.survivorserver.GlobalMarket.SQL.ReadPool;
+
+/*
+ * Rewrites items stored as YAML into the binary item format, a batch per run. Cancels itself once none are left
+ */
+public class ItemMigrationTask extends BukkitRunnable {
+	
+	private static final int BATCH_SIZE = 1000;
+	
+	Market market;
+	AsyncDatabase asyncDb;
+	int lastId = 0;
+	int migrated = 0;
+	
+	public ItemMigrationTask(Market market, AsyncDatabase asyncDb) {
+		this.market = market;
+		this.asyncDb = asyncDb;
+	}
+	
+	@Override
+	public void run() {
+		ReadPool pool = market.getReadPool();
+		Database db = null;
+		try {
+			// Try again next run if the pool is busy or the database is down
+			db = pool.borrow();
+		} catch(SQLException e) {
+			return;
+		}
+		try {
+			MarketResult res = db.createStatement("SELECT id, item FROM items WHERE format=? AND id>? ORDER BY id ASC LIMIT " + BATCH_SIZE)
+					.setInt(ItemCodec.FORMAT_YAML)
+					.setInt(lastId)
+					.query();
+			boolean found = false;
+			while(res.next()) {
+				found = true;
+				lastId = res.getInt(1);
+				String yaml = res.getString(2);
+				if (yaml == null) {
+					continue;
+				}
+				ItemStack item;
+				try {
+					item = MarketStorage.itemStackFromString(yaml);
+				} catch(InvalidConfigurationException e) {
+					try {
+						item = MarketStorage.itemStackFromString(MarketStorage.sanitizeItemString(yaml));
+					} catch(InvalidConfigurationException ex) {
+						market.log.warning("Item ID " + lastId + " could not be converted to the binary format");
+						continue;
+					}
+				}
+				asyncDb.addStatement(new QueuedStatement("UPDATE items SET format=?, data=?, item=NULL WHERE id=?")
+				.setValue(ItemCodec.FORMAT_BINARY)
+				.setValue(item)
+				.setValue(lastId));
+				migrated++;
+			}
+			res.close();
+			if (!found) {
+				if (migrated > 0) {
+					market.log.info("Converted " + migrated + " items to the binary item format");
+				}
+				cancel();
+			}
+		} catch(Exception e) {
+			market.log.severe("Error while converting items:");
+			e.printStackTrace();
+			cancel();
+		} finally {
+			pool.release(db);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.survivorserver.GlobalMarket.Tasks;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.survivorserver.GlobalMarket.Listing;
+import com.survivorserver.GlobalMarket.Mail;
+import com.survivorserver.GlobalMarket.Market;
+import com.survivorserver.GlobalMarket.MarketStorage;
+import com.survivorserver.GlobalMarket.SQL.ChangeLog;
+import com.survivorserver.GlobalMarket.SQL.Database;
+import com.survivorserver.GlobalMarket.SQL.MarketResult;
+import com.survivorserver.GlobalMarket.SQL.ReadPool;
+
+/*
+ * Polls the change log for listings and mail changed by other servers, reading
+ * the rows they point to here and applying them on the main thread
+ */
+public class SyncTask extends BukkitRunnable {
+	
+	private static final long PRUNE_INTERVAL = 3600000;
+	
+	Market market;
+	MarketStorage storage;
+	ChangeLog changeLog;
+	long lastPrune;
+	
+	public SyncTask(Market market, MarketStorage storage, ChangeLog changeLog) {
+		this.market = market;
+		this.storage = storage;
+		this.changeLog = changeLog;
+	}
+	
+	@Override
+	public void run() {
+		long now = System.currentTimeMillis();
+		if (now - lastPrune > PRUNE_INTERVAL) {
+			lastPrune = now;
+			storage.getAsyncDb().addStatement(ChangeLog.prune(now - market.getSyncRetention()));
+		}
+		ReadPool pool = market.getReadPool();
+		Database db = null;
+		try {
+			db = pool.borrow();
+			final List<ChangeLog.Record> changes = changeLog.poll(db);
+			if (changes.isEmpty()) {
+				return;
+			}
+			final Map<Integer, Listing> listings = new HashMap<Integer, Listing>();
+			final Map<Integer, Mail> mail = new HashMap<Integer, Mail>();
+			for (ChangeLog.Record change : changes) {
+				if (change.getType().equals(ChangeLog.LISTING_ADDED)) {
+					MarketResult res = db.createStatement("SELECT * FROM listings WHERE id=?").setInt(change.getTarget()).query();
+					if (res.next()) {
+						listings.put(change.getTarget(), res.constructListing(storage));
+					}
+					res.close();
+				} else if (change.getType().equals(ChangeLog.MAIL_ADDED)) {
+					MarketResult res = db.createStatement("SELECT * FROM mail WHERE id=?").setInt(change.getTarget()).query();
+					if (res.next()) {
+						mail.put(change.getTarget(), res.constructMail(storage));
+					}
+					res.close();
+				}
+			}
+			if (!listings.isEmpty()) {
+				// Indexing these on the main thread needs their items, so read them here
+				List<Integer> itemIds = new ArrayList<Integer>(listings.size());
+				for (Listing listing : listings.values()) {
+					itemIds.add(listing.getItemId());
+				}
+				storage.getItemCache().getAll(itemIds);
+			}
+			market.getServer().getScheduler().runTask(market, new Runnable() {
+				public void run() {
+					storage.applyChanges(changes, listings, mail);
+				}
+			});
+		} catch(SQLException e) {
+			// Logged on every poll while the database is down, so keep it to one line
+			market.log.severe("Couldn't poll for market changes: " + e.getMessage());
+		} finally {
+			pool.release(db);
+		}
+	}
+}